@@ -8,6 +8,8 @@ import life.qbic.qpostman.common.options.SampleIdentifierOptions.IdentityFileEmp
 import life.qbic.qpostman.common.options.SampleIdentifierOptions.IdentityFileNotFoundException;
 import life.qbic.qpostman.common.options.SampleIdentifierOptions.IdentityFileNotReadableException;
 import life.qbic.qpostman.common.options.SampleIdentifierOptions.SampleInput.ToShortSampleIdsException;
+import life.qbic.qpostman.daemon.Daemon.DaemonRunningException;
+import life.qbic.qpostman.daemon.SubmitCommand.DaemonUnavailableException;
 import life.qbic.qpostman.openbis.ConnectionException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -57,6 +59,13 @@ public class DefaultExceptionHandler implements IExecutionExceptionHandler {
       log.debug(
           "The pattern %s is malformed:%s".formatted(malformedPatternException.getPatternString(),
               malformedPatternException.getErrorDescription()), malformedPatternException);
+    } else if (e instanceof DaemonRunningException daemonRunningException) {
+      log.error("A daemon is running on %s already. Use --socket to start another one.".formatted(
+          daemonRunningException.socket()));
+    } else if (e instanceof DaemonUnavailableException daemonUnavailableException) {
+      log.error("No daemon is running on %s. Start one with the daemon command.".formatted(
+          daemonUnavailableException.socket()));
+      log.debug(daemonUnavailableException.getMessage(), daemonUnavailableException);
     } else {
       log.error("Something went wrong. For more detailed output see " + Path.of(LOG_PATH, "postman.log").toAbsolutePath());
       log.debug(e.getMessage(), e);
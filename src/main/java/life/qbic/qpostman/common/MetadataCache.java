@@ -0,0 +1,523 @@
+package life.qbic.qpostman.common;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+import static java.util.Objects.requireNonNull;
+
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.dataset.DataSet;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.dataset.fetchoptions.DataSetFetchOptions;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.dataset.id.DataSetPermId;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.datastore.DataStore;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.sample.Sample;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.sample.SampleType;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.sample.fetchoptions.SampleFetchOptions;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.sample.id.SamplePermId;
+import ch.ethz.sis.openbis.generic.dssapi.v3.dto.datasetfile.DataSetFile;
+import ch.ethz.sis.openbis.generic.dssapi.v3.dto.datasetfile.id.DataSetFilePermId;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import life.qbic.qpostman.common.options.CacheOptions;
+import life.qbic.qpostman.common.structures.DataFile;
+import life.qbic.qpostman.common.structures.DataSetWrapper;
+import life.qbic.qpostman.openbis.DataStoreServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Remembers the files found for sample identifiers on disk, so repeated searches for the same
+ * identifiers do not need to contact the servers.
+ * <p>
+ * Every entry holds the files found for one set of identifiers on one set of servers for one user.
+ * Only the fields of samples, datasets and files used after the search are stored, in a compressed
+ * binary file. Samples and datasets shared by several files are stored once. Entries expire after
+ * a time to live. If all entries together exceed the maximal size, the least recently used
+ * entries are removed.
+ * <p>
+ * The cache directory must be owned by the user and accessible by nobody else, as entries decide
+ * which files are downloaded.
+ * <p>
+ * The cache is an optimization only. Entries that cannot be read or written are ignored.
+ */
+public class MetadataCache {
+
+  private static final Logger log = LogManager.getLogger(MetadataCache.class);
+  private static final int FORMAT_VERSION = 2;
+  private static final String ENTRY_SUFFIX = ".bin";
+  private static final int NONE = -1;
+
+  private final Path directory;
+  private final Duration timeToLive;
+  private final long maxSize;
+  private final Map<String, DataStoreServer> dataStoreServers;
+
+  private MetadataCache(Path directory, Duration timeToLive, long maxSize,
+      Collection<DataStoreServer> dataStoreServers) {
+    this.directory = directory;
+    this.timeToLive = timeToLive;
+    this.maxSize = maxSize;
+    this.dataStoreServers = dataStoreServers.stream()
+        .collect(Collectors.toMap(DataStoreServer::url, Function.identity(), (first, second) -> first));
+  }
+
+  /**
+   * Opens the cache in a directory. The directory is created if it does not exist. An existing
+   * directory is only used if it is owned by the user and nobody else can access it.
+   *
+   * @param directory        the directory to keep the entries in
+   * @param timeToLive       how long entries are valid after they were written
+   * @param maxSize          the maximal number of bytes all entries may use together
+   * @param dataStoreServers the servers cached files are stored on
+   * @return the metadata cache
+   */
+  public static MetadataCache open(Path directory, Duration timeToLive, long maxSize,
+      Collection<DataStoreServer> dataStoreServers) {
+    requireNonNull(directory, "directory must not be null");
+    requireNonNull(timeToLive, "timeToLive must not be null");
+    try {
+      if (PrivateDirectory.isSupported()) {
+        PrivateDirectory.create(directory);
+      } else {
+        Files.createDirectories(directory);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not use metadata cache in %s: %s".formatted(directory,
+          e.getMessage()), e);
+    }
+    return new MetadataCache(directory, timeToLive, maxSize, dataStoreServers);
+  }
+
+  /**
+   * Opens the cache configured by the options.
+   *
+   * @param cacheOptions     the cache options
+   * @param dataStoreServers the servers cached files are stored on
+   * @return the metadata cache; empty if caching is disabled or the cache cannot be opened
+   */
+  public static Optional<MetadataCache> open(CacheOptions cacheOptions,
+      Collection<DataStoreServer> dataStoreServers) {
+    if (!cacheOptions.cache) {
+      return Optional.empty();
+    }
+    Path directory = isNull(cacheOptions.cacheDirectory)
+        ? defaultDirectory()
+        : Path.of(cacheOptions.cacheDirectory);
+    try {
+      return Optional.of(open(directory, Duration.ofMinutes(cacheOptions.timeToLiveInMinutes),
+          cacheOptions.maxSize, dataStoreServers));
+    } catch (UncheckedIOException e) {
+      log.warn("Searching without metadata cache: " + e.getMessage());
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * @return the default cache directory <code>postman-cli</code> in the user's cache directory
+   */
+  public static Path defaultDirectory() {
+    String cacheHome = System.getenv("XDG_CACHE_HOME");
+    if (isNull(cacheHome) || cacheHome.isBlank()) {
+      return Path.of(System.getProperty("user.home"), ".cache", "postman-cli");
+    }
+    return Path.of(cacheHome, "postman-cli");
+  }
+
+  /**
+   * Identifies the result of a search. The order and duplicates of identifiers and server urls do
+   * not matter.
+   *
+   * @param applicationServerUrl the url of the application server
+   * @param dataStoreServerUrls  the urls of the data store servers
+   * @param user                 the user searching
+   * @param identifiers          the searched sample identifiers
+   * @return the key of the cache entry
+   */
+  public static String key(String applicationServerUrl, Collection<String> dataStoreServerUrls,
+      String user, Collection<String> identifiers) {
+    String description = String.join("\n", applicationServerUrl,
+        String.join(" ", new TreeSet<>(dataStoreServerUrls)), user,
+        String.join(" ", new TreeSet<>(identifiers)));
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      return HexFormat.of().formatHex(digest.digest(description.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Provides the cached files of a key or searches and caches them.
+   *
+   * @param key    the key of the entry
+   * @param search searches the files if they are not cached
+   * @return the files of the entry
+   */
+  public List<DataFile> computeIfAbsent(String key, Supplier<? extends Collection<DataFile>> search) {
+    Optional<List<DataFile>> cachedFiles = get(key);
+    if (cachedFiles.isPresent()) {
+      return cachedFiles.get();
+    }
+    return replace(key, search);
+  }
+
+  /**
+   * Searches the files of a key and replaces the cached files.
+   *
+   * @param key    the key of the entry
+   * @param search searches the files
+   * @return the files found by the search
+   */
+  public List<DataFile> replace(String key, Supplier<? extends Collection<DataFile>> search) {
+    List<DataFile> files = List.copyOf(search.get());
+    put(key, files);
+    return files;
+  }
+
+  /**
+   * @param key the key of the entry
+   * @return the cached files; empty if no valid entry exists
+   */
+  public Optional<List<DataFile>> get(String key) {
+    Path entry = entry(key);
+    if (!Files.isRegularFile(entry)) {
+      log.debug("No cached metadata for " + key);
+      return Optional.empty();
+    }
+    try (DataInputStream input = new DataInputStream(
+        new GZIPInputStream(new BufferedInputStream(Files.newInputStream(entry))))) {
+      if (input.readInt() != FORMAT_VERSION || !input.readUTF().equals(key)) {
+        log.debug("Ignoring incompatible cache entry " + entry);
+        delete(entry);
+        return Optional.empty();
+      }
+      Instant writtenAt = Instant.ofEpochMilli(input.readLong());
+      if (writtenAt.plus(timeToLive).isBefore(Instant.now())) {
+        log.debug("Cached metadata for %s expired".formatted(key));
+        delete(entry);
+        return Optional.empty();
+      }
+      List<DataFile> files = readFiles(input);
+      Files.setLastModifiedTime(entry, FileTime.from(Instant.now()));
+      log.info("Using metadata cached at %s. Use --refresh-cache to search again.".formatted(
+          writtenAt));
+      return Optional.of(files);
+    } catch (IOException | RuntimeException e) {
+      log.debug("Could not read cache entry " + entry, e);
+      delete(entry);
+      return Optional.empty();
+    }
+  }
+
+  private List<DataFile> readFiles(DataInputStream input) throws IOException {
+    List<Sample> samples = readSamples(input);
+    int numberOfDataSets = readCount(input);
+    List<DataSetWrapper> dataSets = new ArrayList<>(Math.min(numberOfDataSets, 1024));
+    for (int i = 0; i < numberOfDataSets; i++) {
+      dataSets.add(new DataSetWrapper(readDataSet(input, samples)));
+    }
+    int numberOfFiles = readCount(input);
+    List<DataFile> files = new ArrayList<>(Math.min(numberOfFiles, 1024));
+    for (int i = 0; i < numberOfFiles; i++) {
+      DataSetWrapper dataSet = dataSets.get(input.readInt());
+      DataSetFile dataSetFile = new DataSetFile();
+      dataSetFile.setDataSetPermId(dataSet.dataSetPermId());
+      dataSetFile.setPath(input.readUTF());
+      dataSetFile.setPermId(new DataSetFilePermId(dataSet.dataSetPermId(), dataSetFile.getPath()));
+      dataSetFile.setDirectory(false);
+      dataSetFile.setFileLength(input.readLong());
+      dataSetFile.setChecksumCRC32(input.readInt());
+      DataStoreServer dataStoreServer = dataStoreServers.get(input.readUTF());
+      if (isNull(dataStoreServer)) {
+        throw new IOException("The cached data store server is not configured.");
+      }
+      files.add(new DataFile(dataSetFile, dataSet, dataStoreServer));
+    }
+    return files;
+  }
+
+  /**
+   * Reads all samples first and connects them to their parents afterwards, as parents can be
+   * stored after their children.
+   */
+  private static List<Sample> readSamples(DataInputStream input) throws IOException {
+    int numberOfSamples = readCount(input);
+    List<Sample> samples = new ArrayList<>(Math.min(numberOfSamples, 1024));
+    List<int[]> parentIndices = new ArrayList<>(Math.min(numberOfSamples, 1024));
+    for (int i = 0; i < numberOfSamples; i++) {
+      Sample sample = new Sample();
+      SampleFetchOptions fetchOptions = new SampleFetchOptions();
+      sample.setFetchOptions(fetchOptions);
+      sample.setCode(input.readUTF());
+      readNullableUTF(input).map(SamplePermId::new).ifPresent(sample::setPermId);
+      Optional<String> typeCode = readNullableUTF(input);
+      if (typeCode.isPresent()) {
+        fetchOptions.withType();
+        SampleType type = new SampleType();
+        type.setCode(typeCode.get());
+        sample.setType(type);
+      }
+      int numberOfParents = input.readInt();
+      if (numberOfParents < NONE) {
+        throw new IOException("Invalid number of parents " + numberOfParents);
+      }
+      int[] parents = new int[Math.max(numberOfParents, 0)];
+      for (int j = 0; j < parents.length; j++) {
+        parents[j] = input.readInt();
+      }
+      if (numberOfParents != NONE) {
+        fetchOptions.withParents();
+      }
+      samples.add(sample);
+      parentIndices.add(numberOfParents == NONE ? null : parents);
+    }
+    for (int i = 0; i < numberOfSamples; i++) {
+      int[] parents = parentIndices.get(i);
+      if (parents != null) {
+        List<Sample> parentSamples = new ArrayList<>(parents.length);
+        for (int parent : parents) {
+          parentSamples.add(samples.get(parent));
+        }
+        samples.get(i).setParents(parentSamples);
+      }
+    }
+    return samples;
+  }
+
+  private static DataSet readDataSet(DataInputStream input, List<Sample> samples)
+      throws IOException {
+    DataSet dataSet = new DataSet();
+    DataSetFetchOptions fetchOptions = new DataSetFetchOptions();
+    dataSet.setFetchOptions(fetchOptions);
+    dataSet.setPermId(new DataSetPermId(input.readUTF()));
+    dataSet.setRegistrationDate(new Date(input.readLong()));
+    int sample = input.readInt();
+    if (sample != NONE) {
+      fetchOptions.withSample();
+      dataSet.setSample(samples.get(sample));
+    }
+    if (input.readBoolean()) {
+      fetchOptions.withDataStore();
+      DataStore dataStore = new DataStore();
+      readNullableUTF(input).ifPresent(dataStore::setCode);
+      readNullableUTF(input).ifPresent(dataStore::setDownloadUrl);
+      readNullableUTF(input).ifPresent(dataStore::setRemoteUrl);
+      dataSet.setDataStore(dataStore);
+    }
+    return dataSet;
+  }
+
+  private static int readCount(DataInputStream input) throws IOException {
+    int count = input.readInt();
+    if (count < 0) {
+      throw new IOException("Invalid count " + count);
+    }
+    return count;
+  }
+
+  private static Optional<String> readNullableUTF(DataInputStream input) throws IOException {
+    return input.readBoolean() ? Optional.of(input.readUTF()) : Optional.empty();
+  }
+
+  /**
+   * Caches the files of a key. Replaces an existing entry.
+   *
+   * @param key   the key of the entry
+   * @param files the files to cache
+   */
+  public void put(String key, Collection<DataFile> files) {
+    Path entry = entry(key);
+    try {
+      Path temporaryFile = Files.createTempFile(directory, key, ".tmp");
+      try (DataOutputStream output = new DataOutputStream(
+          new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile))))) {
+        output.writeInt(FORMAT_VERSION);
+        output.writeUTF(key);
+        output.writeLong(Instant.now().toEpochMilli());
+        writeFiles(output, files);
+      }
+      Files.move(temporaryFile, entry, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      log.debug("Cached metadata of %s files in %s".formatted(files.size(), entry));
+    } catch (IOException | RuntimeException e) {
+      log.warn("Could not cache metadata: " + e.getMessage());
+      log.debug("Could not write cache entry " + entry, e);
+      return;
+    }
+    evict();
+  }
+
+  /**
+   * Writes the samples, the datasets and the files. Datasets refer to their sample and files to
+   * their dataset by index.
+   */
+  private static void writeFiles(DataOutputStream output, Collection<DataFile> files)
+      throws IOException {
+    Map<DataSet, Integer> dataSetIndices = new IdentityHashMap<>();
+    List<DataSet> dataSets = new ArrayList<>();
+    for (DataFile file : files) {
+      dataSetIndices.computeIfAbsent(file.dataSet().dataSet(), dataSet -> {
+        dataSets.add(dataSet);
+        return dataSets.size() - 1;
+      });
+    }
+    Map<Sample, Integer> sampleIndices = new IdentityHashMap<>();
+    List<Sample> samples = new ArrayList<>();
+    Deque<Sample> unvisitedSamples = new ArrayDeque<>();
+    dataSets.stream()
+        .map(MetadataCache::sampleOf)
+        .flatMap(Optional::stream)
+        .forEach(unvisitedSamples::add);
+    while (!unvisitedSamples.isEmpty()) {
+      Sample sample = unvisitedSamples.poll();
+      if (!sampleIndices.containsKey(sample)) {
+        sampleIndices.put(sample, samples.size());
+        samples.add(sample);
+        parentsOf(sample).ifPresent(unvisitedSamples::addAll);
+      }
+    }
+
+    output.writeInt(samples.size());
+    for (Sample sample : samples) {
+      output.writeUTF(sample.getCode());
+      writeNullableUTF(output, isNull(sample.getPermId()) ? null : sample.getPermId().getPermId());
+      writeNullableUTF(output, typeCodeOf(sample).orElse(null));
+      Optional<List<Sample>> parents = parentsOf(sample);
+      output.writeInt(parents.map(List::size).orElse(NONE));
+      for (Sample parent : parents.orElse(List.of())) {
+        output.writeInt(sampleIndices.get(parent));
+      }
+    }
+    output.writeInt(dataSets.size());
+    for (DataSet dataSet : dataSets) {
+      output.writeUTF(dataSet.getPermId().getPermId());
+      output.writeLong(dataSet.getRegistrationDate().getTime());
+      output.writeInt(sampleOf(dataSet).map(sampleIndices::get).orElse(NONE));
+      Optional<DataStore> dataStore = new DataSetWrapper(dataSet).dataStore();
+      output.writeBoolean(dataStore.isPresent());
+      if (dataStore.isPresent()) {
+        writeNullableUTF(output, dataStore.get().getCode());
+        writeNullableUTF(output, dataStore.get().getDownloadUrl());
+        writeNullableUTF(output, dataStore.get().getRemoteUrl());
+      }
+    }
+    output.writeInt(files.size());
+    for (DataFile file : files) {
+      output.writeInt(dataSetIndices.get(file.dataSet().dataSet()));
+      output.writeUTF(file.dataSetFile().getPath());
+      output.writeLong(file.dataSetFile().getFileLength());
+      output.writeInt(file.dataSetFile().getChecksumCRC32());
+      output.writeUTF(file.dataStoreServer().url());
+    }
+  }
+
+  private static Optional<Sample> sampleOf(DataSet dataSet) {
+    if (isNull(dataSet.getFetchOptions()) || !dataSet.getFetchOptions().hasSample()) {
+      return Optional.empty();
+    }
+    return Optional.ofNullable(dataSet.getSample());
+  }
+
+  private static Optional<String> typeCodeOf(Sample sample) {
+    if (isNull(sample.getFetchOptions()) || !sample.getFetchOptions().hasType()
+        || isNull(sample.getType())) {
+      return Optional.empty();
+    }
+    return Optional.ofNullable(sample.getType().getCode());
+  }
+
+  private static Optional<List<Sample>> parentsOf(Sample sample) {
+    if (isNull(sample.getFetchOptions()) || !sample.getFetchOptions().hasParents()) {
+      return Optional.empty();
+    }
+    return Optional.ofNullable(sample.getParents());
+  }
+
+  private static void writeNullableUTF(DataOutputStream output, String value) throws IOException {
+    output.writeBoolean(nonNull(value));
+    if (nonNull(value)) {
+      output.writeUTF(value);
+    }
+  }
+
+  /**
+   * Removes the least recently used entries until all entries fit into the maximal size.
+   */
+  private void evict() {
+    List<Path> entries;
+    try (Stream<Path> files = Files.list(directory)) {
+      entries = files
+          .filter(file -> file.getFileName().toString().endsWith(ENTRY_SUFFIX))
+          .sorted(Comparator.comparing(MetadataCache::lastModified).reversed())
+          .toList();
+    } catch (IOException e) {
+      log.debug("Could not list cache entries in " + directory, e);
+      return;
+    }
+    long size = 0;
+    for (Path entry : entries) {
+      size += size(entry);
+      if (size > maxSize) {
+        log.debug("Evicting cache entry " + entry);
+        delete(entry);
+      }
+    }
+  }
+
+  private Path entry(String key) {
+    return directory.resolve(key + ENTRY_SUFFIX);
+  }
+
+  private static FileTime lastModified(Path file) {
+    try {
+      return Files.getLastModifiedTime(file);
+    } catch (IOException e) {
+      return FileTime.fromMillis(0);
+    }
+  }
+
+  private static long size(Path file) {
+    try {
+      return Files.size(file);
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  private static void delete(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      log.debug("Could not delete " + file, e);
+    }
+  }
+}
@@ -2,6 +2,8 @@ package life.qbic.qpostman.common;
 
 import static picocli.CommandLine.Command;
 
+import life.qbic.qpostman.daemon.DaemonCommand;
+import life.qbic.qpostman.daemon.SubmitCommand;
 import life.qbic.qpostman.download.DownloadCommand;
 import life.qbic.qpostman.list.ListCommand;
 import picocli.CommandLine;
@@ -20,6 +22,6 @@ import picocli.CommandLine;
     sortOptions = false,
     usageHelpAutoWidth = true,
     versionProvider = ManifestVersionProvider.class,
-    subcommands = {DownloadCommand.class, ListCommand.class})
+    subcommands = {DownloadCommand.class, ListCommand.class, DaemonCommand.class, SubmitCommand.class})
 public class PostmanCommand {
 }
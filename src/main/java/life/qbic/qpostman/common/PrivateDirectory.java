@@ -0,0 +1,67 @@
+package life.qbic.qpostman.common;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Set;
+
+/**
+ * Provides directories only the current user can access. Files in them cannot be read, replaced
+ * or created by other users.
+ */
+public final class PrivateDirectory {
+
+  private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString(
+      "rwx------");
+
+  private PrivateDirectory() {
+  }
+
+  /**
+   * @return whether the file system can restrict directories to their owner
+   */
+  public static boolean isSupported() {
+    return FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+  }
+
+  /**
+   * Creates a directory only the current user can access. An existing directory is only used if
+   * the current user owns it and nobody else can access it.
+   *
+   * @param directory the directory
+   * @return the directory
+   * @throws IOException if the directory cannot be created or other users can access it
+   */
+  public static Path create(Path directory) throws IOException {
+    Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+    PosixFileAttributes attributes = Files.readAttributes(directory, PosixFileAttributes.class,
+        LinkOption.NOFOLLOW_LINKS);
+    if (!attributes.isDirectory()) {
+      throw new IOException(directory + " is not a directory.");
+    }
+    if (!attributes.owner().equals(currentUser())) {
+      throw new IOException("%s is owned by %s, not by you.".formatted(directory,
+          attributes.owner().getName()));
+    }
+    if (!attributes.permissions().equals(OWNER_ONLY)) {
+      throw new IOException("%s can be accessed by other users. Restrict it with chmod 700."
+          .formatted(directory));
+    }
+    return directory;
+  }
+
+  /**
+   * @return the user running this process
+   * @throws IOException if the user cannot be looked up
+   */
+  public static UserPrincipal currentUser() throws IOException {
+    return FileSystems.getDefault().getUserPrincipalLookupService()
+        .lookupPrincipalByName(System.getProperty("user.name"));
+  }
+}
@@ -1,5 +1,6 @@
 package life.qbic.qpostman.common;
 
+import java.io.PrintWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -14,14 +15,25 @@ public class ProgressBar {
   private final int MAXFILENAMESIZE = TERMINAL_WIDTH / 3;
   private static final long UPDATE_INTERVAL = 1000;
   private float nextProgressJump;
-  private final float stepSize;
-  private final String fileName;
-  private final Long totalFileSize;
+  private float stepSize;
+  private String fileName;
+  private Long totalFileSize;
   private Long downloadedSize;
-  private final long start;
+  private long start;
   private long lastUpdated;
+  private final PrintWriter out;
 
   public ProgressBar(String fileName, long totalFileSize) {
+    this(fileName, totalFileSize, new PrintWriter(System.out));
+  }
+
+  /**
+   * @param fileName      the name shown in front of the progress bar
+   * @param totalFileSize the number of bytes of a complete download
+   * @param out           the writer to draw the progress bar to
+   */
+  public ProgressBar(String fileName, long totalFileSize, PrintWriter out) {
+    this.out = out;
     this.fileName = shortenFileName(fileName);
     this.totalFileSize = totalFileSize;
     this.downloadedSize = 0L;
@@ -31,6 +43,25 @@ public class ProgressBar {
     lastUpdated = 0;
   }
 
+  /**
+   * Changes the total size and the name shown, e.g. when more files are added to a download. Once
+   * bytes were downloaded, the downloaded size and the start time are kept, so the speed and the
+   * remaining time stay correct.
+   *
+   * @param fileName      the name shown in front of the progress bar
+   * @param totalFileSize the number of bytes of a complete download
+   */
+  public void resize(String fileName, long totalFileSize) {
+    this.fileName = shortenFileName(fileName);
+    this.totalFileSize = totalFileSize;
+    this.stepSize = (float) totalFileSize / (float) BARSIZE;
+    this.nextProgressJump = ((int) (this.downloadedSize / this.stepSize) + 1) * this.stepSize;
+    if (this.downloadedSize == 0) {
+      // nothing was downloaded while waiting for the first files
+      this.start = System.currentTimeMillis();
+    }
+  }
+
   public void updateProgress(long addDownloadedSize) {
     this.downloadedSize += addDownloadedSize;
     update();
@@ -70,12 +101,14 @@ public class ProgressBar {
   }
 
   private void drawProgress() {
-    System.out.printf("\r%-" + computeLeftPadding() + "s %s", this.fileName, buildProgressBar());
+    out.printf("\r%-" + computeLeftPadding() + "s %s", this.fileName, buildProgressBar());
+    out.flush();
     lastUpdated = System.currentTimeMillis();
   }
 
   public void remove() {
-    System.out.printf("\r%"+TERMINAL_WIDTH+"s\r", ""); //clear whole line
+    out.printf("\r%"+TERMINAL_WIDTH+"s\r", ""); //clear whole line
+    out.flush();
   }
 
   private int computeLeftPadding() {
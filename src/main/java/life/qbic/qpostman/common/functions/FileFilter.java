@@ -8,6 +8,7 @@ import java.util.List;
 import java.util.function.Predicate;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
 import life.qbic.qpostman.common.structures.DataFile;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -84,6 +85,25 @@ public class FileFilter implements Predicate<DataFile> {
         return result;
     }
 
+    /**
+     * @return a description that is the same for filters including the same files; empty if all
+     * files are included
+     */
+    public String description() {
+        List<String> criteria = new ArrayList<>();
+        if (!suffixes.isEmpty()) {
+            criteria.add("suffixes=" + suffixes.stream()
+                .map(String::toLowerCase)
+                .distinct()
+                .sorted()
+                .collect(Collectors.joining(",")));
+        }
+        if (nonNull(pattern)) {
+            criteria.add("pattern=" + pattern.pattern());
+        }
+        return String.join(" ", criteria);
+    }
+
     private static boolean hasSuffix(String input, String suffix) {
         return input.toLowerCase().endsWith(suffix.toLowerCase());
     }
@@ -1,14 +1,28 @@
 package life.qbic.qpostman.common.functions;
 
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
 import static java.util.Objects.requireNonNull;
 
 import ch.ethz.sis.openbis.generic.asapi.v3.dto.sample.Sample;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 
+/**
+ * Finds the closest ancestor of a sample with the source sample type. The sample itself is returned
+ * if no such ancestor exists.
+ * <p>
+ * Resolved source samples are remembered for every visited sample, including samples without a
+ * source sample ancestor. Datasets of the same sample or of samples sharing ancestors are resolved
+ * without walking the ancestry again. Instances are thread-safe and meant to be shared for a whole
+ * run.
+ */
 public class FindSourceSample implements Function<Sample, Sample> {
     private final String sourceSampleTypeCode;
+    private final Map<String, Optional<Sample>> sourceSamples = new ConcurrentHashMap<>();
 
     public FindSourceSample(String sourceSampleTypeCode) {
         this.sourceSampleTypeCode = sourceSampleTypeCode;
@@ -21,6 +35,17 @@ public class FindSourceSample implements Function<Sample, Sample> {
     }
 
     private Optional<Sample> findSourceSample(Sample sample) {
+        String key = key(sample);
+        Optional<Sample> knownSourceSample = sourceSamples.get(key);
+        if (nonNull(knownSourceSample)) {
+            return knownSourceSample;
+        }
+        Optional<Sample> sourceSample = searchSourceSample(sample);
+        sourceSamples.putIfAbsent(key, sourceSample);
+        return sourceSample;
+    }
+
+    private Optional<Sample> searchSourceSample(Sample sample) {
         if (sample.getType().getCode().equals(sourceSampleTypeCode)) {
             return Optional.of(sample);
         }
@@ -36,4 +61,14 @@ public class FindSourceSample implements Function<Sample, Sample> {
         }
         return Optional.empty();
     }
+
+    /**
+     * Identifies a sample by its permId. The code is used if the permId was not fetched.
+     */
+    private static String key(Sample sample) {
+        if (isNull(sample.getPermId())) {
+            return sample.getCode();
+        }
+        return sample.getPermId().getPermId();
+    }
 }
@@ -0,0 +1,88 @@
+package life.qbic.qpostman.common.functions;
+
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.sample.Sample;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.sample.id.SamplePermId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Visits samples and their children, every sample only once across all traversals of an instance.
+ * <p>
+ * Samples are visited with a work queue instead of recursion, so deep hierarchies do not exhaust
+ * the stack. Roots are traversed one after the other in their given order, so a sample shared by
+ * several trees is always attributed to the first root reaching it. Instances are not thread-safe.
+ */
+class SampleTreeTraversal {
+
+  private static final Logger log = LogManager.getLogger(SampleTreeTraversal.class);
+
+  private final Set<SamplePermId> visitedSamples = new HashSet<>();
+  private long visitedNodes = 0;
+  private long traversedEdges = 0;
+
+  /**
+   * Visits the roots and all their descendants in order.
+   *
+   * @param roots the samples to start from
+   * @return all samples not visited before, in the order of the roots
+   */
+  List<Sample> newSamples(Collection<Sample> roots) {
+    return newSamplesByRoot(roots).stream()
+        .flatMap(List::stream)
+        .toList();
+  }
+
+  /**
+   * Visits the roots and all their descendants in order.
+   *
+   * @param roots the samples to start from
+   * @return for every root in order, the samples not visited before that were reached from it
+   */
+  List<List<Sample>> newSamplesByRoot(Collection<Sample> roots) {
+    return roots.stream()
+        .map(this::newSamples)
+        .toList();
+  }
+
+  private List<Sample> newSamples(Sample root) {
+    List<Sample> newSamples = new ArrayList<>();
+    Deque<Sample> workQueue = new ArrayDeque<>();
+    workQueue.add(root);
+    while (!workQueue.isEmpty()) {
+      Sample sample = workQueue.poll();
+      if (!visitedSamples.add(sample.getPermId())) {
+        log.trace("already visited " + sample.getCode());
+        continue;
+      }
+      log.trace("visiting " + sample.getCode());
+      visitedNodes++;
+      newSamples.add(sample);
+      for (Sample child : sample.getChildren()) {
+        traversedEdges++;
+        workQueue.add(child);
+      }
+    }
+    return newSamples;
+  }
+
+  /**
+   * @return the number of distinct samples visited
+   */
+  long visitedNodes() {
+    return visitedNodes;
+  }
+
+  /**
+   * @return the number of parent-child relations followed
+   */
+  long traversedEdges() {
+    return traversedEdges;
+  }
+}
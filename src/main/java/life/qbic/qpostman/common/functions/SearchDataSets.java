@@ -1,46 +1,381 @@
 package life.qbic.qpostman.common.functions;
 
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
 import static java.util.Objects.requireNonNull;
 
 import ch.ethz.sis.openbis.generic.asapi.v3.IApplicationServerApi;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.common.search.SearchResult;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.dataset.DataSet;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.dataset.fetchoptions.DataSetFetchOptions;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.dataset.id.DataSetPermId;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.dataset.search.DataSetSearchCriteria;
 import ch.ethz.sis.openbis.generic.asapi.v3.dto.sample.Sample;
 import ch.ethz.sis.openbis.generic.asapi.v3.dto.sample.fetchoptions.SampleFetchOptions;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.sample.id.SamplePermId;
 import ch.ethz.sis.openbis.generic.asapi.v3.dto.sample.search.SampleSearchCriteria;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.stream.Stream;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import life.qbic.qpostman.common.structures.DataSetWrapper;
-import life.qbic.qpostman.openbis.OpenBisSessionProvider;
+import life.qbic.qpostman.openbis.OpenBisSession;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 public class SearchDataSets implements Function<Collection<String>, Collection<DataSetWrapper>> {
     private static final Logger log = LogManager.getLogger(SearchDataSets.class);
     private final IApplicationServerApi applicationServerApi;
+    private final OpenBisSession session;
+    private final int chunkSize;
+    private final int threads;
+    private final int pageSize;
+    private final FetchPlan fetchPlan;
+    private final Instant registeredSince;
+    private final BiConsumer<String, DataSetWrapper> dataSetListener;
 
-    public SearchDataSets(IApplicationServerApi applicationServerApi) {
+    public SearchDataSets(IApplicationServerApi applicationServerApi, OpenBisSession session) {
+        this(applicationServerApi, session, 1, 1, 0, FetchPlan.RECURSIVE, null,
+            (identifier, dataSet) -> {});
+    }
+
+    private SearchDataSets(IApplicationServerApi applicationServerApi, OpenBisSession session,
+        int chunkSize, int threads,
+        int pageSize, FetchPlan fetchPlan, Instant registeredSince,
+        BiConsumer<String, DataSetWrapper> dataSetListener) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("At least one identifier has to be searched per request.");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one search thread is required.");
+        }
+        if (pageSize < 0) {
+            throw new IllegalArgumentException("The page size must not be negative.");
+        }
         this.applicationServerApi = applicationServerApi;
+        this.session = requireNonNull(session, "session must not be null");
+        this.chunkSize = chunkSize;
+        this.threads = threads;
+        this.pageSize = pageSize;
+        this.fetchPlan = requireNonNull(fetchPlan, "fetchPlan must not be null");
+        this.registeredSince = registeredSince;
+        this.dataSetListener = requireNonNull(dataSetListener, "dataSetListener must not be null");
+    }
+
+    /**
+     * Creates a copy of this function searching the samples of several identifiers with one
+     * request.
+     *
+     * @param chunkSize the maximal number of identifiers to search with one request
+     * @return a function searching up to chunkSize identifiers per request
+     */
+    public SearchDataSets withChunkSize(int chunkSize) {
+        return new SearchDataSets(applicationServerApi, session, chunkSize, threads, pageSize, fetchPlan,
+            registeredSince, dataSetListener);
+    }
+
+    /**
+     * Creates a copy of this function sending several sample search requests at the same time.
+     *
+     * @param threads the maximal number of concurrent requests
+     * @return a function searching samples with concurrent requests
+     */
+    public SearchDataSets withThreads(int threads) {
+        return new SearchDataSets(applicationServerApi, session, chunkSize, threads, pageSize, fetchPlan,
+            registeredSince, dataSetListener);
+    }
+
+    /**
+     * Creates a copy of this function receiving the samples found for a request in pages. Only the
+     * samples of few pages are kept in memory at the same time.
+     *
+     * @param pageSize the maximal number of samples per page; 0 to receive all samples at once
+     * @return a function receiving samples in pages
+     */
+    public SearchDataSets withPageSize(int pageSize) {
+        return new SearchDataSets(applicationServerApi, session, chunkSize, threads, pageSize, fetchPlan,
+            registeredSince, dataSetListener);
+    }
+
+    /**
+     * Creates a copy of this function requesting samples and datasets according to a fetch plan.
+     *
+     * @param fetchPlan the fetch plan to use
+     * @return a function requesting samples and datasets according to the fetch plan
+     */
+    public SearchDataSets withFetchPlan(FetchPlan fetchPlan) {
+        return new SearchDataSets(applicationServerApi, session, chunkSize, threads, pageSize, fetchPlan,
+            registeredSince, dataSetListener);
+    }
+
+    /**
+     * Creates a copy of this function finding only datasets registered at or after a point in time.
+     * With the {@link FetchPlan#LEAN} fetch plan, older datasets are not requested from the
+     * application server.
+     *
+     * @param registeredSince the earliest registration time of found datasets
+     * @return a function finding datasets registered since the given time
+     */
+    public SearchDataSets withRegisteredSince(Instant registeredSince) {
+        requireNonNull(registeredSince, "registeredSince must not be null");
+        return new SearchDataSets(applicationServerApi, session, chunkSize, threads, pageSize, fetchPlan,
+            registeredSince, dataSetListener);
+    }
+
+    /**
+     * Creates a copy of this function telling for every found dataset which sample identifier it
+     * was found for. A dataset is attributed to the identifier of the sample it was found by
+     * traversing from. Samples reachable from several identifiers are traversed only once, so their
+     * datasets are attributed to only one of them. Datasets are told about before they are provided
+     * to the consumer of the search.
+     *
+     * @param dataSetListener receives the sample identifier as given and every dataset found for it
+     * @return a function telling which identifier every dataset was found for
+     */
+    public SearchDataSets withDataSetListener(BiConsumer<String, DataSetWrapper> dataSetListener) {
+        return new SearchDataSets(applicationServerApi, session, chunkSize, threads, pageSize, fetchPlan,
+            registeredSince, dataSetListener);
     }
 
     private Collection<DataSetWrapper> searchDataSets(Collection<String> userInput) {
-        List<Sample> samples = userInput.stream()
-                .map(SampleQuery::new)
-                .flatMap(this::searchSamples)
+        List<DataSetWrapper> foundDataSets = new ArrayList<>();
+        searchDataSets(userInput, foundDataSets::addAll);
+        return foundDataSets;
+    }
+
+    /**
+     * Searches the datasets of one chunk of sample identifiers after the other. The datasets found
+     * for a chunk are handed to the consumer before the datasets of the next chunk. Every dataset
+     * is provided only once, even if it is found for several identifiers.
+     * <p>
+     * Identifiers ending with <code>*</code> are searched as code prefixes in chunks of their own.
+     * A <code>*</code> or <code>?</code> elsewhere in an identifier is expanded by the application
+     * server and matched alike when attributing datasets to identifiers.
+     * The chunks are searched concurrently. With a page size, the samples of a chunk are requested
+     * page by page and every page is handed to the consumer before further pages are requested.
+     *
+     * @param userInput       the sample identifiers
+     * @param dataSetConsumer receives the datasets found for every chunk or page of samples
+     */
+    public void searchDataSets(Collection<String> userInput,
+        Consumer<Collection<DataSetWrapper>> dataSetConsumer) {
+        ExecutorService executorService = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setName("sample-search-" + thread.getId());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Iterator<SampleQuery> sampleQueries = sampleQueries(userInput).iterator();
+            // at most one request per thread is pending so that only few pages are kept in memory
+            Deque<Future<SamplePage>> searches = new ArrayDeque<>();
+            while (searches.size() < threads && sampleQueries.hasNext()) {
+                searches.add(submit(new PageRequest(sampleQueries.next(), 0), executorService));
+            }
+            SampleTreeTraversal sampleTreeTraversal = new SampleTreeTraversal();
+            Set<DataSetPermId> foundDataSets = new HashSet<>();
+            while (!searches.isEmpty()) {
+                SamplePage samplePage = await(searches.poll());
+                if (samplePage.hasNext()) {
+                    searches.addFirst(submit(samplePage.next(), executorService));
+                } else if (sampleQueries.hasNext()) {
+                    searches.add(submit(new PageRequest(sampleQueries.next(), 0), executorService));
+                }
+                List<List<Sample>> newSamplesByRoot = sampleTreeTraversal.newSamplesByRoot(
+                    samplePage.samples());
+                List<Sample> newSamples = newSamplesByRoot.stream().flatMap(List::stream).toList();
+                List<DataSetWrapper> dataSets = switch (fetchPlan) {
+                    case RECURSIVE -> newSamples.stream()
+                        .flatMap(sample -> sample.getDataSets().stream())
+                        .map(DataSetWrapper::new)
+                        .toList();
+                    case LEAN -> fetchDataSets(newSamples.stream().map(Sample::getPermId).toList(),
+                        executorService);
+                };
+                List<DataSetWrapper> registeredDataSets = dataSets.stream()
+                    .filter(this::isRegisteredSince)
+                    .toList();
+                tellIdentifiers(samplePage, newSamplesByRoot, registeredDataSets);
+                dataSetConsumer.accept(registeredDataSets.stream()
+                    .filter(dataSet -> foundDataSets.add(dataSet.dataSetPermId()))
+                    .toList());
+            }
+            log.debug("Visited %s samples and %s parent-child relations, found %s datasets".formatted(
+                sampleTreeTraversal.visitedNodes(), sampleTreeTraversal.traversedEdges(),
+                foundDataSets.size()));
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * Tells the listener which identifier of the page's query every dataset was found for.
+     */
+    private void tellIdentifiers(SamplePage samplePage, List<List<Sample>> newSamplesByRoot,
+        List<DataSetWrapper> dataSets) {
+        Map<SamplePermId, String> identifierBySample = new HashMap<>();
+        for (int i = 0; i < newSamplesByRoot.size(); i++) {
+            Optional<String> identifier = samplePage.pageRequest().sampleQuery()
+                .identifierOf(samplePage.samples().get(i));
+            if (identifier.isEmpty()) {
+                continue;
+            }
+            newSamplesByRoot.get(i).forEach(sample ->
+                identifierBySample.put(sample.getPermId(), identifier.get()));
+        }
+        for (DataSetWrapper dataSet : dataSets) {
+            if (isNull(dataSet.sample())) {
+                continue;
+            }
+            String identifier = identifierBySample.get(dataSet.sample().getPermId());
+            if (nonNull(identifier)) {
+                dataSetListener.accept(identifier, dataSet);
+            }
+        }
+    }
+
+    private boolean isRegisteredSince(DataSetWrapper dataSet) {
+        return isNull(registeredSince) || !dataSet.registrationTime().isBefore(registeredSince);
+    }
+
+    /**
+     * Fetches the datasets of samples together with the ancestry of the samples they are attached
+     * to. Samples are requested in chunks, the chunks are fetched concurrently.
+     */
+    private List<DataSetWrapper> fetchDataSets(List<SamplePermId> samplePermIds,
+        ExecutorService executorService) {
+        long start = System.nanoTime();
+        List<Future<List<DataSet>>> requests = chunks(samplePermIds).stream()
+            .map(chunk -> executorService.submit(() -> dataSetsOf(chunk)))
+            .toList();
+        List<DataSetWrapper> dataSets = new ArrayList<>();
+        for (Future<List<DataSet>> request : requests) {
+            await(request).stream()
+                .map(DataSetWrapper::new)
+                .forEach(dataSets::add);
+        }
+        log.debug("Fetched %s datasets of %s samples with %s requests in %s ms".formatted(
+            dataSets.size(), samplePermIds.size(), requests.size(),
+            (System.nanoTime() - start) / 1_000_000));
+        return dataSets;
+    }
+
+    private List<DataSet> dataSetsOf(List<SamplePermId> samplePermIds) {
+        if (isNull(registeredSince)) {
+            SampleFetchOptions sampleFetchOptions = new SampleFetchOptions();
+            sampleFetchOptions.withDataSetsUsing(FetchPlan.dataSetFetchOptions());
+            return session.withToken(token ->
+                    applicationServerApi.getSamples(token, samplePermIds, sampleFetchOptions))
+                .values().stream()
+                .flatMap(sample -> sample.getDataSets().stream())
                 .toList();
-        Set<String> processedSampleCodes = new HashSet<>();
-        Set<DataSetWrapper> foundDataSets = new HashSet<>();
-        for (Sample it : samples) {
-            addAllDataSets(it, processedSampleCodes, foundDataSets);
         }
-        return foundDataSets;
+        DataSetSearchCriteria dataSetSearchCriteria = new DataSetSearchCriteria().withAndOperator();
+        dataSetSearchCriteria.withSample().withIds().thatIn(List.copyOf(samplePermIds));
+        dataSetSearchCriteria.withRegistrationDate()
+            .thatIsLaterThanOrEqualTo(Date.from(registeredSince));
+        return session.withToken(token ->
+            applicationServerApi.searchDataSets(token, dataSetSearchCriteria,
+                FetchPlan.dataSetFetchOptions())).getObjects();
+    }
+
+    private Future<SamplePage> submit(PageRequest pageRequest, ExecutorService executorService) {
+        return executorService.submit(() -> searchSamples(pageRequest));
+    }
+
+    private List<SampleQuery> sampleQueries(Collection<String> userInput) {
+        Map<Boolean, List<String>> identifiersByWildcard = userInput.stream()
+            .distinct()
+            .collect(Collectors.partitioningBy(it -> it.endsWith("*")));
+        List<SampleQuery> sampleQueries = new ArrayList<>();
+        sampleQueries.addAll(chunks(identifiersByWildcard.get(false)).stream()
+            .map(codes -> new SampleQuery(codes, List.of()))
+            .toList());
+        sampleQueries.addAll(chunks(identifiersByWildcard.get(true)).stream()
+            .map(wildcards -> new SampleQuery(List.of(), wildcards.stream()
+                .map(it -> it.substring(0, it.length() - 1))
+                .toList()))
+            .toList());
+        log.debug("Searching %s identifiers with %s requests".formatted(userInput.size(),
+            sampleQueries.size()));
+        return sampleQueries;
+    }
+
+    private <T> List<List<T>> chunks(List<T> elements) {
+        List<List<T>> chunks = new ArrayList<>();
+        for (int i = 0; i < elements.size(); i += chunkSize) {
+            chunks.add(elements.subList(i, Math.min(i + chunkSize, elements.size())));
+        }
+        return chunks;
+    }
+
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private SamplePage searchSamples(PageRequest pageRequest) {
+        SampleFetchOptions fetchOptions = fetchPlan.sampleFetchOptions();
+        if (pageSize > 0) {
+            fetchOptions.sortBy().permId();
+            fetchOptions.from(pageRequest.from());
+            fetchOptions.count(pageSize);
+        }
+        long start = System.nanoTime();
+        SearchResult<Sample> searchResult = session.withToken(token ->
+            applicationServerApi.searchSamples(token, pageRequest.sampleQuery().searchCriteria(),
+                fetchOptions));
+        log.debug("Received samples %s to %s of %s in %s ms".formatted(pageRequest.from(),
+            pageRequest.from() + searchResult.getObjects().size(), searchResult.getTotalCount(),
+            (System.nanoTime() - start) / 1_000_000));
+        return new SamplePage(pageRequest, searchResult.getObjects(), searchResult.getTotalCount());
     }
 
-    private Stream<Sample> searchSamples(SampleQuery sampleQuery) {
+    /**
+     * A request for the samples of a query starting at an offset.
+     */
+    private record PageRequest(SampleQuery sampleQuery, int from) {
+    }
+
+    /**
+     * The samples of a query received for a page request.
+     */
+    private record SamplePage(PageRequest pageRequest, List<Sample> samples, int totalCount) {
+
+        boolean hasNext() {
+            return !samples.isEmpty() && pageRequest.from() + samples.size() < totalCount;
+        }
 
-        return applicationServerApi.searchSamples(OpenBisSessionProvider.get().getToken(), sampleQuery.searchCriteria(), sampleQuery.fetchOptions()).getObjects().stream();
+        PageRequest next() {
+            return new PageRequest(pageRequest.sampleQuery(), pageRequest.from() + samples.size());
+        }
     }
 
     @Override
@@ -48,60 +383,131 @@ public class SearchDataSets implements Function<Collection<String>, Collection<D
         return searchDataSets(strings);
     }
 
-    private record SampleQuery(String sampleCode) {
+    /**
+     * Searches samples by their code. Samples matching any of the codes or code prefixes are found.
+     */
+    private record SampleQuery(List<String> sampleCodes, List<String> sampleCodePrefixes) {
         SampleQuery {
-            requireNonNull(sampleCode, "sampleCode must not be null");
+            requireNonNull(sampleCodes, "sampleCodes must not be null");
+            requireNonNull(sampleCodePrefixes, "sampleCodePrefixes must not be null");
         }
-        public SampleSearchCriteria searchCriteria() {
-            SampleSearchCriteria sampleSearchCriteria = new SampleSearchCriteria();
-            sampleSearchCriteria.withCode().thatEquals(sampleCode);
-            return sampleSearchCriteria;
+        /**
+         * Matches the sample the way the application server does: case-insensitive, with
+         * <code>*</code> standing for any number of characters and <code>?</code> for a single
+         * character anywhere in a code.
+         *
+         * @param sample a sample found by this query
+         * @return the identifier as given that matched the sample
+         */
+        Optional<String> identifierOf(Sample sample) {
+            String code = sample.getCode();
+            Optional<String> identifier = sampleCodes.stream()
+                .filter(sampleCode -> matches(code, sampleCode, false))
+                .findFirst();
+            if (identifier.isPresent()) {
+                return identifier;
+            }
+            return sampleCodePrefixes.stream()
+                .filter(prefix -> matches(code, prefix, true))
+                .map(prefix -> prefix + "*")
+                .findFirst();
         }
 
-        public SampleFetchOptions fetchOptions() {
-            // for all samples fetch the direct parents with type
-            SampleFetchOptions parentFetchOptions = new SampleFetchOptions();
-            parentFetchOptions.withType();
-            // fetch dataset with sample, sample type and parents with type, propagate fetch options to children.
-            SampleFetchOptions sampleFetchOptions = new SampleFetchOptions();
-            sampleFetchOptions.withDataSets().withSample();
-            sampleFetchOptions.withType();
-            sampleFetchOptions.withParents();
-            sampleFetchOptions.withParentsUsing(parentFetchOptions);
-            sampleFetchOptions.withChildrenUsing(sampleFetchOptions);
-            // for the root sample, fetch all parents recursively
-            SampleFetchOptions rootParentFetchOptions = new SampleFetchOptions();
-            rootParentFetchOptions.withType();
-            rootParentFetchOptions.withParentsUsing(rootParentFetchOptions);
-            // use same fetch options as for all other samples + fetching all parents recursively instead of direct parents.
-            SampleFetchOptions rootSampleFetchOptions = new SampleFetchOptions();
-            rootSampleFetchOptions.withDataSets().withSample();
-            rootSampleFetchOptions.withType();
-            rootSampleFetchOptions.withParents();
-            rootSampleFetchOptions.withChildrenUsing(sampleFetchOptions);
-            rootSampleFetchOptions.withParentsUsing(rootParentFetchOptions);
-            return rootSampleFetchOptions;
-        }
-    }
-
-    private void addAllDataSets(Sample sample, Set<String> processedSampleCodes, Set<DataSetWrapper> dataSetAccumulator) {
-        if (processedSampleCodes.contains(sample.getCode())) {
-            log.trace("already visited " + sample.getCode());
-            return;
-        } else {
-            log.trace("visiting " + sample.getCode());
-        }
-        List<DataSetWrapper> dataSetList = sample.getDataSets().stream()
-                .map(DataSetWrapper::new)
-                .toList();
-        dataSetAccumulator.addAll(dataSetList);
-        processedSampleCodes.add(sample.getCode());
-        if (!dataSetList.isEmpty()) {
-            log.trace("added " + dataSetList.size() + " datasets for " + sample.getCode());
+        private static boolean matches(String code, String pattern, boolean prefix) {
+            if (pattern.indexOf('*') < 0 && pattern.indexOf('?') < 0) {
+                return prefix ? code.regionMatches(true, 0, pattern, 0, pattern.length())
+                    : code.equalsIgnoreCase(pattern);
+            }
+            StringBuilder regex = new StringBuilder();
+            for (String literal : pattern.split("(?=[*?])|(?<=[*?])")) {
+                switch (literal) {
+                    case "*" -> regex.append(".*");
+                    case "?" -> regex.append('.');
+                    default -> regex.append(Pattern.quote(literal));
+                }
+            }
+            if (prefix) {
+                regex.append(".*");
+            }
+            return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.DOTALL)
+                .matcher(code).matches();
         }
-        sample.getChildren().forEach(it -> addAllDataSets(it, processedSampleCodes, dataSetAccumulator));
 
+        public SampleSearchCriteria searchCriteria() {
+            SampleSearchCriteria sampleSearchCriteria = new SampleSearchCriteria().withOrOperator();
+            sampleCodes.forEach(sampleCode -> sampleSearchCriteria.withCode().thatEquals(sampleCode));
+            sampleCodePrefixes.forEach(sampleCodePrefix ->
+                sampleSearchCriteria.withCode().thatStartsWith(sampleCodePrefix));
+            return sampleSearchCriteria;
+        }
     }
 
+    /**
+     * Determines which information about samples and datasets is requested from the application
+     * server.
+     */
+    public enum FetchPlan {
+        /**
+         * Request the datasets, types and parents of all samples and their children with one request.
+         * The ancestry of a sample is part of the response for every child referencing it.
+         */
+        RECURSIVE {
+            @Override
+            SampleFetchOptions sampleFetchOptions() {
+                // for all samples fetch the direct parents with type
+                SampleFetchOptions parentFetchOptions = new SampleFetchOptions();
+                parentFetchOptions.withType();
+                // fetch dataset with sample, sample type and parents with type, propagate fetch options to children.
+                SampleFetchOptions sampleFetchOptions = new SampleFetchOptions();
+                DataSetFetchOptions dataSetFetchOptions = sampleFetchOptions.withDataSets();
+                dataSetFetchOptions.withSample();
+                dataSetFetchOptions.withDataStore();
+                sampleFetchOptions.withType();
+                sampleFetchOptions.withParents();
+                sampleFetchOptions.withParentsUsing(parentFetchOptions);
+                sampleFetchOptions.withChildrenUsing(sampleFetchOptions);
+                // for the root sample, fetch all parents recursively
+                SampleFetchOptions rootParentFetchOptions = new SampleFetchOptions();
+                rootParentFetchOptions.withType();
+                rootParentFetchOptions.withParentsUsing(rootParentFetchOptions);
+                // use same fetch options as for all other samples + fetching all parents recursively instead of direct parents.
+                SampleFetchOptions rootSampleFetchOptions = new SampleFetchOptions();
+                rootSampleFetchOptions.withDataSetsUsing(dataSetFetchOptions);
+                rootSampleFetchOptions.withType();
+                rootSampleFetchOptions.withParents();
+                rootSampleFetchOptions.withChildrenUsing(sampleFetchOptions);
+                rootSampleFetchOptions.withParentsUsing(rootParentFetchOptions);
+                return rootSampleFetchOptions;
+            }
+        },
+        /**
+         * Request only the codes of the samples and their children first. The datasets of all new
+         * samples are requested afterwards in bulk, so every sample and its ancestry is part of a
+         * response only once.
+         */
+        LEAN {
+            @Override
+            SampleFetchOptions sampleFetchOptions() {
+                SampleFetchOptions sampleFetchOptions = new SampleFetchOptions();
+                sampleFetchOptions.withChildrenUsing(sampleFetchOptions);
+                return sampleFetchOptions;
+            }
+        };
+
+        abstract SampleFetchOptions sampleFetchOptions();
 
+        /**
+         * @return fetch options for datasets with the data store and the sample of the dataset
+         * including its type and all its ancestors
+         */
+        static DataSetFetchOptions dataSetFetchOptions() {
+            SampleFetchOptions ancestorFetchOptions = new SampleFetchOptions();
+            ancestorFetchOptions.withType();
+            ancestorFetchOptions.withParentsUsing(ancestorFetchOptions);
+            DataSetFetchOptions dataSetFetchOptions = new DataSetFetchOptions();
+            dataSetFetchOptions.withSampleUsing(ancestorFetchOptions);
+            dataSetFetchOptions.withDataStore();
+            return dataSetFetchOptions;
+        }
+    }
 }
@@ -3,40 +3,124 @@ package life.qbic.qpostman.common.functions;
 import static java.util.Objects.requireNonNull;
 
 import ch.ethz.sis.openbis.generic.asapi.v3.dto.dataset.id.DataSetPermId;
-import ch.ethz.sis.openbis.generic.dssapi.v3.IDataStoreServerApi;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.dataset.search.DataSetSearchCriteria;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.datastore.DataStore;
 import ch.ethz.sis.openbis.generic.dssapi.v3.dto.datasetfile.DataSetFile;
 import ch.ethz.sis.openbis.generic.dssapi.v3.dto.datasetfile.fetchoptions.DataSetFileFetchOptions;
 import ch.ethz.sis.openbis.generic.dssapi.v3.dto.datasetfile.search.DataSetFileSearchCriteria;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.stream.Stream;
+import java.util.stream.Collectors;
 import life.qbic.qpostman.common.structures.DataFile;
 import life.qbic.qpostman.common.structures.DataSetWrapper;
-import life.qbic.qpostman.openbis.OpenBisSessionProvider;
+import life.qbic.qpostman.openbis.DataStoreRouting;
+import life.qbic.qpostman.openbis.DataStoreServer;
+import life.qbic.qpostman.openbis.OpenBisSession;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
  * Searches for data files based on a collection of DataSetWrapper objects.
- * It utilizes a collection of IDataStoreServerApi instances to perform the search querying every datastore and aggregating the files.
+ * It utilizes a collection of data store servers to perform the search querying every datastore and aggregating the files.
+ * Every found file remembers the data store server it was found on.
+ * <p>
+ * Every data store server is queried by its own set of threads, so the listing takes as long as
+ * the slowest server instead of the sum of all servers. Datasets with a known data store are only
+ * listed on the server storing them. Share one {@link DataStoreRouting} between listings with
+ * {@link #withDataStoreRouting(DataStoreRouting)}, so data stores found on a server by one listing
+ * are routed to it by later ones.
  */
 public class SearchFiles implements Function<Collection<DataSetWrapper>, Collection<DataFile>> {
 
     private static final Logger log = LogManager.getLogger(SearchFiles.class);
-    private final Collection<IDataStoreServerApi> dataStoreServerApis;
+    private final Collection<DataStoreServer> dataStoreServers;
+    private final OpenBisSession session;
     private final DataSetCounterUpdateListener dataSetCounterUpdateListener;
+    private final int chunkSize;
+    private final int threadsPerServer;
+    private final DataStoreRouting dataStoreRouting;
 
-    public SearchFiles(Collection<IDataStoreServerApi> dataStoreServerApis,
+    public SearchFiles(Collection<DataStoreServer> dataStoreServers, OpenBisSession session,
         DataSetCounterUpdateListener dataSetCounterUpdateListener) {
-        this.dataStoreServerApis = dataStoreServerApis;
+        this(dataStoreServers, session, dataSetCounterUpdateListener, 1, 1,
+            new DataStoreRouting(dataStoreServers));
+    }
+
+    private SearchFiles(Collection<DataStoreServer> dataStoreServers, OpenBisSession session,
+        DataSetCounterUpdateListener dataSetCounterUpdateListener, int chunkSize,
+        int threadsPerServer, DataStoreRouting dataStoreRouting) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("At least one dataset has to be listed per request.");
+        }
+        if (threadsPerServer < 1) {
+            throw new IllegalArgumentException("At least one listing thread per server is required.");
+        }
+        this.dataStoreServers = dataStoreServers;
+        this.session = session;
         this.dataSetCounterUpdateListener = dataSetCounterUpdateListener;
+        this.chunkSize = chunkSize;
+        this.threadsPerServer = threadsPerServer;
+        this.dataStoreRouting = dataStoreRouting;
+    }
+
+    /**
+     * Creates a copy of this function listing the files of several datasets with a single request
+     * to each data store server.
+     *
+     * @param chunkSize the maximal number of datasets to list with one request
+     * @return a function listing the files of up to chunkSize datasets per request
+     */
+    public SearchFiles withChunkSize(int chunkSize) {
+        return new SearchFiles(dataStoreServers, session, dataSetCounterUpdateListener, chunkSize,
+            threadsPerServer, dataStoreRouting);
+    }
+
+    /**
+     * Creates a copy of this function sending several listing requests to every data store server
+     * at the same time.
+     *
+     * @param threadsPerServer the maximal number of concurrent requests to one data store server
+     * @return a function listing files with concurrent requests
+     */
+    public SearchFiles withThreadsPerServer(int threadsPerServer) {
+        return new SearchFiles(dataStoreServers, session, dataSetCounterUpdateListener, chunkSize,
+            threadsPerServer, dataStoreRouting);
+    }
 
+    /**
+     * Creates a copy of this function routing datasets to data store servers with the given
+     * routing. The routing must know the data store servers of this function.
+     *
+     * @param dataStoreRouting the routing to use and to assign found data stores in
+     * @return a function listing files with the given routing
+     */
+    public SearchFiles withDataStoreRouting(DataStoreRouting dataStoreRouting) {
+        return new SearchFiles(dataStoreServers, session, dataSetCounterUpdateListener, chunkSize,
+            threadsPerServer, requireNonNull(dataStoreRouting, "dataStoreRouting must not be null"));
     }
 
     @Override
     public Collection<DataFile> apply(Collection<DataSetWrapper> dataSetWrappers) {
-        return searchFiles(dataSetWrappers, dataSetCounterUpdateListener);
+        List<DataFile> dataFiles = new ArrayList<>();
+        searchFiles(dataSetWrappers, dataFiles::addAll);
+        return dataFiles;
     }
 
     @FunctionalInterface
@@ -47,68 +131,230 @@ public class SearchFiles implements Function<Collection<DataSetWrapper>, Collect
 
 
 
+    /**
+     * Displays the number of datasets indexed so far. The counter is only updated by the thread
+     * consuming the listed files.
+     */
     public static class DataSetCounterProgressDisplay implements DataSetCounterUpdateListener {
 
         final int maxCount;
+        final PrintWriter out;
         int currCount;
 
         public DataSetCounterProgressDisplay(int maxCount) {
+            this(maxCount, new PrintWriter(System.out));
+        }
+
+        public DataSetCounterProgressDisplay(int maxCount, PrintWriter out) {
             this.maxCount = maxCount;
+            this.out = out;
             currCount = 0;
         }
 
         @Override
         public void updateCounter(int numberOfDatasets) {
             currCount += numberOfDatasets;
-            System.out.printf("Indexing dataset %4s / %s\r", currCount, maxCount);
-        }
-    }
-
-
-
-    private List<DataFile> searchFiles(Collection<DataSetWrapper> dataSets,
-        DataSetCounterUpdateListener updateListener) {
-        Stream<DataSetFileQuery> dataSetFileQueries = dataSets.stream()
-            .map(DataSetWrapper::dataSetPermId)
-            .map(DataSetFileQuery::new);
-        Stream<DataSetFile> dataSetFiles = dataSetFileQueries
-            .peek(it -> updateListener.updateCounter(1))
-            .flatMap(this::queryDataStoresForFiles);
-        Stream<DataFile> dataFiles = dataSetFiles
-            .map(dataSetFile -> {
-                DataSetPermId dataSetPermId = dataSetFile.getDataSetPermId();
-                DataSetWrapper dataSet = dataSets.stream()
-                    .filter(ds -> ds.dataSetPermId().equals(dataSetPermId)).findFirst()
-                    .orElseThrow();
-                return new DataFile(dataSetFile, dataSet);
-            });
-        return dataFiles.toList();
-    }
-
-    private Stream<DataSetFile> queryDataStoresForFiles(DataSetFileQuery dataSetFileQuery) {
-        return dataStoreServerApis.stream()
-                .flatMap(dataStoreServerApi ->
-                {
-                    List<DataSetFile> files = dataStoreServerApi.searchFiles(OpenBisSessionProvider.get().getToken(),
-                                    dataSetFileQuery.searchCriteria(),
-                                    dataSetFileQuery.fetchOptions())
-                            .getObjects();
-                    log.trace("Found " + files.size() + " files for "
-                        + dataSetFileQuery.dataSetPermId.getPermId() + " on "
-                        + dataStoreServerApi);
-                    return files.stream();
-                })
-                .filter(file -> !file.isDirectory()); // filter out all folders but keeps the files
-    }
-
-    private record DataSetFileQuery(DataSetPermId dataSetPermId) {
+            out.printf("Indexing dataset %4s / %s\r", currCount, maxCount);
+            out.flush();
+        }
+    }
+
+
+
+    /**
+     * Lists the files of one chunk of datasets after the other. The files of a chunk are handed to
+     * the consumer before the files of the next chunk. All data store servers are queried at the
+     * same time and the next chunks are listed while the consumer processes the files.
+     * <p>
+     * Only as many chunks are listed ahead as every server has threads. The servers of a chunk are
+     * chosen when it is submitted, so data stores found on a server by earlier chunks are only
+     * listed on that server.
+     * <p>
+     * A file found on several data store servers is provided only once, from the first server it
+     * was found on.
+     *
+     * @param dataSets     the datasets to list files for
+     * @param fileConsumer receives the files of every chunk of datasets
+     */
+    public void searchFiles(Collection<DataSetWrapper> dataSets,
+        Consumer<List<DataFile>> fileConsumer) {
+        Map<DataStoreServer, ExecutorService> executors = new LinkedHashMap<>();
+        dataStoreServers.forEach(dataStoreServer -> executors.put(dataStoreServer,
+            newListingExecutor()));
+        try {
+            Iterator<List<DataSetWrapper>> chunks = chunks(dataSets).iterator();
+            Deque<ChunkListing> listings = new ArrayDeque<>();
+            while (listings.size() < threadsPerServer && chunks.hasNext()) {
+                listings.add(submit(chunks.next(), executors));
+            }
+            Set<FileKey> listedFiles = new HashSet<>();
+            while (!listings.isEmpty()) {
+                ChunkListing listing = listings.poll();
+                List<DataFile> dataFiles = new ArrayList<>();
+                for (Future<List<StoredFile>> serverListing : listing.serverListings()) {
+                    for (StoredFile storedFile : await(serverListing)) {
+                        if (listedFiles.add(FileKey.of(storedFile))) {
+                            dataFiles.add(new DataFile(storedFile.file(), storedFile.dataSet(),
+                                storedFile.dataStoreServer()));
+                        }
+                    }
+                }
+                if (chunks.hasNext()) {
+                    listings.add(submit(chunks.next(), executors));
+                }
+                dataSetCounterUpdateListener.updateCounter(listing.numberOfDataSets());
+                fileConsumer.accept(dataFiles);
+            }
+        } finally {
+            executors.values().forEach(ExecutorService::shutdownNow);
+        }
+    }
+
+    private ExecutorService newListingExecutor() {
+        return Executors.newFixedThreadPool(threadsPerServer, runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setName("listing-" + thread.getId());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Submits the listing of a chunk of datasets. Datasets are only listed on the data store server
+     * storing them. Datasets with an unknown data store server are listed on all servers.
+     *
+     * @return the listings of the data store servers in the order of the servers
+     */
+    private ChunkListing submit(List<DataSetWrapper> chunk,
+        Map<DataStoreServer, ExecutorService> executors) {
+        Map<DataStoreServer, List<DataSetWrapper>> dataSetsByServer = new LinkedHashMap<>();
+        executors.keySet().forEach(dataStoreServer ->
+            dataSetsByServer.put(dataStoreServer, new ArrayList<>()));
+        for (DataSetWrapper dataSet : chunk) {
+            Optional<DataStoreServer> dataStoreServer = dataSet.dataStore()
+                .flatMap(dataStoreRouting::serverOf)
+                .filter(dataSetsByServer::containsKey);
+            if (dataStoreServer.isPresent()) {
+                dataSetsByServer.get(dataStoreServer.get()).add(dataSet);
+            } else {
+                dataSetsByServer.values().forEach(dataSets -> dataSets.add(dataSet));
+            }
+        }
+        dataSetsByServer.values().removeIf(List::isEmpty);
+        List<Future<List<StoredFile>>> serverListings = new ArrayList<>(dataSetsByServer.size());
+        dataSetsByServer.forEach((dataStoreServer, dataSets) -> serverListings.add(
+            executors.get(dataStoreServer).submit(() -> {
+                List<StoredFile> storedFiles = queryDataStoreForFiles(
+                    new DataSetFileQuery(dataSets), dataStoreServer);
+                // the server storing the files is known for later listings
+                storedFiles.stream()
+                    .map(storedFile -> storedFile.dataSet().dataStore())
+                    .flatMap(Optional::stream)
+                    .collect(Collectors.toMap(DataStore::getCode, Function.identity(),
+                        (first, second) -> first))
+                    .values()
+                    .forEach(dataStore -> dataStoreRouting.assign(dataStore, dataStoreServer));
+                return storedFiles;
+            })));
+        return new ChunkListing(chunk.size(), serverListings);
+    }
+
+    /**
+     * The listings of one chunk of datasets on every data store server it is listed on.
+     */
+    private record ChunkListing(int numberOfDataSets,
+                                List<Future<List<StoredFile>>> serverListings) {
+    }
+
+    private static List<StoredFile> await(Future<List<StoredFile>> listing) {
+        try {
+            return listing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private List<List<DataSetWrapper>> chunks(Collection<DataSetWrapper> dataSets) {
+        List<List<DataSetWrapper>> chunks = new ArrayList<>();
+        List<DataSetWrapper> chunk = new ArrayList<>(chunkSize);
+        for (DataSetWrapper dataSet : dataSets) {
+            chunk.add(dataSet);
+            if (chunk.size() == chunkSize) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>(chunkSize);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    private List<StoredFile> queryDataStoreForFiles(DataSetFileQuery dataSetFileQuery,
+        DataStoreServer dataStoreServer) {
+        List<DataSetFile> files = session.withToken(token ->
+                dataStoreServer.api().searchFiles(token,
+                    dataSetFileQuery.searchCriteria(),
+                    dataSetFileQuery.fetchOptions()))
+            .getObjects();
+        log.trace("Found " + files.size() + " files for "
+            + dataSetFileQuery.dataSets().size() + " datasets on "
+            + dataStoreServer);
+        return files.stream()
+            .filter(file -> !file.isDirectory()) // filter out all folders but keeps the files
+            .map(file -> new StoredFile(file, dataSetFileQuery.dataSetOf(file), dataStoreServer))
+            .toList();
+    }
+
+    private record StoredFile(DataSetFile file, DataSetWrapper dataSet, DataStoreServer dataStoreServer) {
+    }
+
+    private record FileKey(DataSetPermId dataSetPermId, String path) {
+
+        static FileKey of(StoredFile storedFile) {
+            return new FileKey(storedFile.dataSet().dataSetPermId(), storedFile.file().getPath());
+        }
+    }
+
+    /**
+     * Lists the files of several datasets. The found files are assigned to their dataset by the
+     * dataset permId.
+     */
+    private record DataSetFileQuery(List<DataSetWrapper> dataSets,
+                                    Map<DataSetPermId, DataSetWrapper> dataSetsByPermId) {
         private DataSetFileQuery {
-            requireNonNull(dataSetPermId, "dataSetPermId must not be null");
+            requireNonNull(dataSets, "dataSets must not be null");
+            requireNonNull(dataSetsByPermId, "dataSetsByPermId must not be null");
+        }
+
+        private DataSetFileQuery(List<DataSetWrapper> dataSets) {
+            this(dataSets, dataSets.stream()
+                .collect(Collectors.toMap(DataSetWrapper::dataSetPermId, Function.identity(),
+                    (first, second) -> first)));
+        }
+
+        public DataSetWrapper dataSetOf(DataSetFile file) {
+            DataSetWrapper dataSet = dataSetsByPermId.get(file.getDataSetPermId());
+            if (Objects.isNull(dataSet)) {
+                throw new IllegalStateException(
+                    "File %s belongs to dataset %s which was not requested.".formatted(
+                        file.getPath(), file.getDataSetPermId()));
+            }
+            return dataSet;
         }
 
         public DataSetFileSearchCriteria searchCriteria() {
             DataSetFileSearchCriteria criteria = new DataSetFileSearchCriteria();
-            criteria.withDataSet().withPermId().thatEquals(dataSetPermId.getPermId());
+            DataSetSearchCriteria dataSetCriteria = criteria.withDataSet().withOrOperator();
+            for (DataSetPermId dataSetPermId : dataSetsByPermId.keySet()) {
+                dataSetCriteria.withPermId().thatEquals(dataSetPermId.getPermId());
+            }
             return criteria;
         }
 
@@ -13,6 +13,11 @@ public class AuthenticationOptions {
             required = true,
             description = "openBIS user name")
     public String user;
+
+    @Option(names = "--reuse-session",
+        description = "remember your openBIS session in a file only you can read and reuse it in later calls while it is active")
+    public boolean reuseSession = false;
+
     @ArgGroup(multiplicity = "1") // ensures the password is provided once with at least one of the possible options.
     PasswordOptions passwordOptions;
 
@@ -0,0 +1,43 @@
+package life.qbic.qpostman.common.options;
+
+import java.util.StringJoiner;
+import picocli.CommandLine.Option;
+
+public class CacheOptions {
+
+    @Option(names = "--cache", defaultValue = "false",
+        description = "remember found datasets and files to answer repeated searches for the same identifiers without contacting the servers")
+    public boolean cache;
+
+    @Option(names = "--refresh-cache", defaultValue = "false",
+        description = "search again and replace remembered datasets and files")
+    public boolean refreshCache;
+
+    @Option(names = "--cache-dir",
+        paramLabel = "<directory>",
+        description = "the directory to remember found datasets and files in. Defaults to postman-cli in the user cache directory.",
+        hidden = true)
+    public String cacheDirectory = null;
+
+    @Option(names = "--cache-ttl",
+        defaultValue = "60",
+        paramLabel = "<minutes>",
+        description = "how long remembered datasets and files are used",
+        hidden = true)
+    public long timeToLiveInMinutes;
+
+    @Option(names = "--cache-size",
+        defaultValue = "268435456",
+        paramLabel = "<bytes>",
+        description = "the maximal size of all remembered datasets and files",
+        hidden = true)
+    public long maxSize;
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", CacheOptions.class.getSimpleName() + "[", "]")
+            .add("cache=" + cache)
+            .add("refreshCache=" + refreshCache)
+            .toString();
+    }
+}
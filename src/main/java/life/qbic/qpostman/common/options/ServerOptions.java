@@ -1,10 +1,12 @@
 package life.qbic.qpostman.common.options;
 
+import static java.util.Objects.isNull;
 import static picocli.CommandLine.Option;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.StringJoiner;
+import life.qbic.qpostman.common.functions.SearchDataSets.FetchPlan;
 
 public class ServerOptions {
 
@@ -37,6 +39,79 @@ public class ServerOptions {
         hidden = true)
     public long timeoutInMillis = 10_000;
 
+    @Option(names = {"--connect-timeout"},
+        paramLabel = "milliseconds",
+        description = "the time to wait for a connection to a server in milliseconds",
+        hidden = true)
+    public long connectTimeoutInMillis = 10_000;
+
+    @Option(names = {"--connection-pool"}, negatable = true,
+        defaultValue = "true", fallbackValue = "true",
+        description = "keep connections to the servers open and reuse them for later requests",
+        hidden = true)
+    public boolean connectionPool;
+
+    @Option(names = {"--connections-per-server"},
+        paramLabel = "number",
+        description = "the maximal number of pooled connections to one server",
+        hidden = true)
+    public int connectionsPerServer = 8;
+
+    @Option(names = {"--gzip"},
+        description = "allow servers to compress responses to searches",
+        hidden = true)
+    public boolean gzip = false;
+
+    @Option(names = {"--session-check-interval"},
+        paramLabel = "seconds",
+        description = "how long to use a session token before checking with the application server that it is still valid",
+        hidden = true)
+    public long sessionCheckIntervalInSeconds = 600;
+
+    @Option(names = {"--sample-chunk-size"},
+        paramLabel = "number",
+        description = "the number of sample identifiers to search with one request to the application server",
+        hidden = true)
+    public int sampleChunkSize = 100;
+
+    @Option(names = {"--sample-search-threads"},
+        paramLabel = "number",
+        description = "the number of concurrent sample search requests to the application server",
+        hidden = true)
+    public int sampleSearchThreads = 4;
+
+    @Option(names = {"--sample-page-size"},
+        paramLabel = "number",
+        description = "the number of samples received with one response from the application server. Receive all at once if 0.",
+        hidden = true)
+    public int samplePageSize = 200;
+
+    @Option(names = {"--fetch-plan"},
+        paramLabel = "plan",
+        description = "how to request samples and datasets from the application server: ${COMPLETION-CANDIDATES}. Defaults to LEAN for incremental downloads and RECURSIVE otherwise.",
+        hidden = true)
+    public FetchPlan fetchPlan = null;
+
+    @Option(names = {"--listing-chunk-size"},
+        paramLabel = "number",
+        description = "the number of datasets to list files for with one request to a data store server",
+        hidden = true)
+    public int listingChunkSize = 100;
+
+    @Option(names = {"--listing-threads"},
+        paramLabel = "number",
+        description = "the number of concurrent listing requests to every data store server",
+        hidden = true)
+    public int listingThreadsPerServer = 2;
+
+    /**
+     * @param defaultFetchPlan the fetch plan to use if none was chosen
+     * @return the chosen fetch plan or the default fetch plan
+     */
+    public FetchPlan fetchPlanOr(FetchPlan defaultFetchPlan) {
+        return isNull(fetchPlan) ? defaultFetchPlan : fetchPlan;
+    }
+
     @Override
     public String toString() {
 
@@ -2,6 +2,7 @@ package life.qbic.qpostman.common.structures;
 
 import ch.ethz.sis.openbis.generic.dssapi.v3.dto.datasetfile.DataSetFile;
 import ch.ethz.sis.openbis.generic.dssapi.v3.dto.datasetfile.id.DataSetFilePermId;
+import life.qbic.qpostman.openbis.DataStoreServer;
 
 /**
  * A file stored in our datastore. This class provides information about the sample the data is
@@ -11,10 +12,12 @@ public final class DataFile {
 
     private final DataSetFile file;
     private final DataSetWrapper dataSet;
+    private final DataStoreServer dataStoreServer;
 
-    public DataFile(DataSetFile dataSetFile, DataSetWrapper dataSet) {
+    public DataFile(DataSetFile dataSetFile, DataSetWrapper dataSet, DataStoreServer dataStoreServer) {
         this.file = dataSetFile;
         this.dataSet = dataSet;
+        this.dataStoreServer = dataStoreServer;
     }
 
     public FileSize fileSize() {
@@ -33,10 +36,24 @@ public final class DataFile {
         return filePath().substring(filePath().lastIndexOf("/") + 1);
     }
 
+    /**
+     * @return the file as received from the data store server
+     */
+    public DataSetFile dataSetFile() {
+        return file;
+    }
+
     public DataSetWrapper dataSet() {
         return dataSet;
     }
 
+    /**
+     * @return the data store server this file is stored on
+     */
+    public DataStoreServer dataStoreServer() {
+        return dataStoreServer;
+    }
+
     public long crc32() {
         return Integer.toUnsignedLong(file.getChecksumCRC32());
     }
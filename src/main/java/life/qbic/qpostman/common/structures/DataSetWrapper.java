@@ -1,28 +1,35 @@
 package life.qbic.qpostman.common.structures;
 
-import static java.util.Objects.nonNull;
+import static java.util.Objects.isNull;
 import static java.util.Objects.requireNonNull;
 
 import ch.ethz.sis.openbis.generic.asapi.v3.dto.dataset.id.DataSetPermId;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.datastore.DataStore;
 import ch.ethz.sis.openbis.generic.asapi.v3.dto.sample.Sample;
 import java.time.Instant;
-import life.qbic.qpostman.common.functions.FindSourceSample;
+import java.util.Optional;
+import java.util.function.Function;
 
 /**
  * Wraps a DataSet as the openBis DTOs do not guarantee equals and hash code implementation.
  */
 public final class DataSetWrapper {
 
-
-    private static FindSourceSample findSourceSample;
     private final ch.ethz.sis.openbis.generic.asapi.v3.dto.dataset.DataSet dataSet;
-    private Sample sourceSample = null;
 
     public DataSetWrapper(ch.ethz.sis.openbis.generic.asapi.v3.dto.dataset.DataSet dataSet) {
         requireNonNull(dataSet, "dataSet must not be null");
         this.dataSet = dataSet;
     }
 
+    /**
+     * <b>DO NOT USE FOR EQUALS AND HASH CODE</b>
+     * @return the wrapped dataset
+     */
+    public ch.ethz.sis.openbis.generic.asapi.v3.dto.dataset.DataSet dataSet() {
+        return dataSet;
+    }
+
     public DataSetPermId dataSetPermId() {
         return dataSet.getPermId();
     }
@@ -43,16 +50,22 @@ public final class DataSetWrapper {
         return dataSet.getSample();
     }
 
-    public Sample sourceSample() {
-        if (nonNull(sourceSample)) {
-            return sourceSample;
+    /**
+     * @return the data store the dataset is stored in; empty if it was not fetched
+     */
+    public Optional<DataStore> dataStore() {
+        if (isNull(dataSet.getFetchOptions()) || !dataSet.getFetchOptions().hasDataStore()) {
+            return Optional.empty();
         }
-        this.sourceSample = findSourceSample.apply(sample());
-        return sourceSample;
+        return Optional.ofNullable(dataSet.getDataStore());
     }
 
-    public static void setFindSourceFunction(FindSourceSample findSourceSample) {
-        DataSetWrapper.findSourceSample = findSourceSample;
+    /**
+     * @param findSourceSample finds the source sample of a sample
+     * @return the source sample of the sample where this dataset is attached
+     */
+    public Sample sourceSample(Function<Sample, Sample> findSourceSample) {
+        return findSourceSample.apply(sample());
     }
 
     @Override
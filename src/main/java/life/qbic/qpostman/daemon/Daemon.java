@@ -0,0 +1,406 @@
+package life.qbic.qpostman.daemon;
+
+import static java.util.Objects.isNull;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import jdk.net.ExtendedSocketOptions;
+import jdk.net.UnixDomainPrincipal;
+import life.qbic.qpostman.common.DefaultExceptionHandler;
+import life.qbic.qpostman.common.PostmanCommand;
+import life.qbic.qpostman.common.PrivateDirectory;
+import life.qbic.qpostman.common.options.ServerOptions;
+import life.qbic.qpostman.daemon.JobProtocol.Job;
+import life.qbic.qpostman.download.DownloadCommand;
+import life.qbic.qpostman.list.ListCommand;
+import life.qbic.qpostman.openbis.ClientRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import picocli.CommandLine;
+import picocli.CommandLine.IFactory;
+import picocli.CommandLine.ParameterException;
+import picocli.CommandLine.ParseResult;
+
+/**
+ * Runs list and download jobs received on a Unix domain socket.
+ * <p>
+ * All jobs share the session and the server clients of the daemon, so they neither log in nor
+ * create server clients. Jobs are queued and a fixed number of them runs at the same time. The
+ * output of a job is sent to the client that submitted it while the job runs.
+ * <p>
+ * Download jobs write to the working directory of the client unless they name an output
+ * directory. Only one download job at a time writes to an output directory, as the download index
+ * and the sync state of a directory are not shared between jobs.
+ * <p>
+ * Only jobs of the user the daemon is logged in as and for the application server it is connected
+ * to are accepted. Only connections of the user running the daemon are accepted. The socket is
+ * only created in a directory nobody else can access, so other users cannot connect to it at all.
+ */
+public class Daemon implements AutoCloseable {
+
+  private static final Logger log = LogManager.getLogger(Daemon.class);
+  private static final Set<String> JOB_COMMANDS = Set.of("list", "download");
+  /**
+   * Satisfies the password option of jobs without reading a password.
+   */
+  private static final String PASSWORD_PLACEHOLDER = "--password:prop=unused";
+  /**
+   * Options taking a path. Their relative values are resolved against the working directory of
+   * the client.
+   */
+  private static final Set<String> PATH_OPTIONS = Set.of("-o", "--output-dir", "-f", "--file",
+      "--cache-dir");
+
+  private final Path socket;
+  private final ClientRegistry clientRegistry;
+  private final ExecutorService jobs;
+  private final ExecutorService connections;
+  private final AtomicLong submittedJobs = new AtomicLong();
+  private final Map<Path, Lock> outputDirectoryLocks = new ConcurrentHashMap<>();
+  private final AtomicBoolean closed = new AtomicBoolean();
+  private volatile ServerSocketChannel server;
+  private volatile UserPrincipal user;
+
+  /**
+   * @param socket         the path of the socket to receive jobs on
+   * @param clientRegistry the clients shared by all jobs
+   * @param concurrentJobs how many jobs run at the same time
+   */
+  public Daemon(Path socket, ClientRegistry clientRegistry, int concurrentJobs) {
+    if (concurrentJobs < 1) {
+      throw new IllegalArgumentException("At least one job must run at a time, was " + concurrentJobs);
+    }
+    this.socket = socket;
+    this.clientRegistry = clientRegistry;
+    this.jobs = Executors.newFixedThreadPool(concurrentJobs, threadFactory("job-"));
+    this.connections = Executors.newCachedThreadPool(threadFactory("connection-"));
+  }
+
+  private static ThreadFactory threadFactory(String prefix) {
+    AtomicInteger threadNumber = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, prefix + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /**
+   * Receives jobs until the daemon is closed.
+   *
+   * @throws DaemonRunningException if another daemon listens on the socket
+   * @throws IOException            if the socket cannot be restricted to the user
+   */
+  public void serve() throws IOException {
+    server = bind();
+    log.info("Waiting for jobs on " + socket);
+    while (!closed.get()) {
+      SocketChannel channel;
+      try {
+        channel = server.accept();
+      } catch (ClosedChannelException e) {
+        break;
+      }
+      connections.execute(() -> handle(channel));
+    }
+  }
+
+  private ServerSocketChannel bind() throws IOException {
+    if (!PrivateDirectory.isSupported()) {
+      throw new IOException("The file system cannot restrict the socket of the daemon to you.");
+    }
+    // the socket is only reachable through its directory, also before its own mode is set
+    PrivateDirectory.create(socket.toAbsolutePath().getParent());
+    user = PrivateDirectory.currentUser();
+    if (Files.exists(socket)) {
+      if (isListening(socket)) {
+        throw new DaemonRunningException(socket);
+      }
+      log.debug("Removing stale socket " + socket);
+      Files.delete(socket);
+    }
+    ServerSocketChannel serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+    serverChannel.bind(UnixDomainSocketAddress.of(socket));
+    Files.setPosixFilePermissions(socket, PosixFilePermissions.fromString("rw-------"));
+    return serverChannel;
+  }
+
+  private static boolean isListening(Path socket) {
+    try (SocketChannel ignored = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private void handle(SocketChannel channel) {
+    try (channel;
+        DataInputStream input = new DataInputStream(
+            new BufferedInputStream(Channels.newInputStream(channel)));
+        DataOutputStream output = new DataOutputStream(Channels.newOutputStream(channel))) {
+      UnixDomainPrincipal peer = channel.getOption(ExtendedSocketOptions.SO_PEERCRED);
+      if (!user.equals(peer.user())) {
+        log.warn("Refused a connection of user " + peer.user().getName());
+        PrintWriter err = new PrintWriter(new OutputStreamWriter(
+            JobProtocol.frames(output, JobProtocol.ERR), StandardCharsets.UTF_8), true);
+        err.println("The daemon only runs jobs of " + user.getName() + ".");
+        JobProtocol.writeExit(output, 2);
+        return;
+      }
+      Job job = JobProtocol.readJob(input);
+      long jobNumber = submittedJobs.incrementAndGet();
+      log.info("Queued job %s: %s".formatted(jobNumber, String.join(" ", job.arguments())));
+      Future<Integer> exitCode = jobs.submit(() -> run(jobNumber, job, output));
+      JobProtocol.writeExit(output, exitCode.get());
+    } catch (IOException e) {
+      log.warn("Lost connection to a client: " + e.getMessage());
+      log.debug(e.getMessage(), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      log.error("Job failed unexpectedly", e.getCause());
+    }
+  }
+
+  private int run(long jobNumber, Job job, DataOutputStream output) {
+    PrintWriter out = new PrintWriter(new OutputStreamWriter(
+        JobProtocol.frames(output, JobProtocol.OUT), StandardCharsets.UTF_8), true);
+    PrintWriter err = new PrintWriter(new OutputStreamWriter(
+        JobProtocol.frames(output, JobProtocol.ERR), StandardCharsets.UTF_8), true);
+    try {
+      String[] arguments = withOutputDirectory(
+          withPasswordPlaceholder(resolvePaths(job.arguments(), job.workingDirectory()))
+              .toArray(String[]::new),
+          job.workingDirectory());
+      Optional<String> rejection = rejection(arguments);
+      if (rejection.isPresent()) {
+        log.info("Rejected job %s: %s".formatted(jobNumber, rejection.get()));
+        err.println(rejection.get());
+        return 2;
+      }
+      Optional<Lock> outputDirectoryLock = outputDirectory(arguments)
+          .map(directory -> outputDirectoryLocks.computeIfAbsent(directory,
+              it -> new ReentrantLock()));
+      if (outputDirectoryLock.isPresent() && !outputDirectoryLock.get().tryLock()) {
+        log.info("Job %s waits for another job downloading to the same directory".formatted(
+            jobNumber));
+        out.println("Waiting for another job downloading to the same directory.");
+        try {
+          outputDirectoryLock.get().lockInterruptibly();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          err.println("The daemon stopped before the job ran.");
+          return 1;
+        }
+      }
+      try {
+        log.info("Running job " + jobNumber);
+        long start = System.nanoTime();
+        int exitCode = commandLine().setOut(out).setErr(err).execute(arguments);
+        log.info("Finished job %s with exit code %s in %s ms".formatted(jobNumber, exitCode,
+            (System.nanoTime() - start) / 1_000_000));
+        if (exitCode != 0) {
+          err.println("The job failed. For more detailed output see the log of the daemon.");
+        }
+        return exitCode;
+      } finally {
+        outputDirectoryLock.ifPresent(Lock::unlock);
+      }
+    } finally {
+      out.flush();
+      err.flush();
+    }
+  }
+
+  /**
+   * Checks whether the daemon can run a job. Jobs with invalid arguments are not rejected here;
+   * running them reports the problem as on the command line.
+   */
+  private Optional<String> rejection(String[] arguments) {
+    if (List.of(arguments).contains("--password")) {
+      return Optional.of("Interactive passwords cannot be entered for a daemon job. The daemon is "
+          + "logged in already, submit the command without a password.");
+    }
+    ParseResult parseResult;
+    try {
+      parseResult = commandLine().parseArgs(arguments);
+    } catch (ParameterException e) {
+      return Optional.empty();
+    }
+    ParseResult jobCommand = parseResult.subcommand();
+    if (isNull(jobCommand) || !JOB_COMMANDS.contains(jobCommand.commandSpec().name())) {
+      return Optional.of("The daemon runs list and download jobs only.");
+    }
+    String user = jobCommand.matchedOptionValue("--user", null);
+    if (!clientRegistry.username().equals(user)) {
+      return Optional.of("The daemon is logged in as %s, not as %s.".formatted(
+          clientRegistry.username(), user));
+    }
+    String applicationServerUrl = jobCommand.matchedOptionValue("--application-server",
+        new ServerOptions().as_url);
+    if (!clientRegistry.applicationServerUrl().equals(applicationServerUrl)) {
+      return Optional.of("The daemon is connected to %s, not to %s.".formatted(
+          clientRegistry.applicationServerUrl(), applicationServerUrl));
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Adds a password option to jobs without one. Jobs use the session of the daemon and never read
+   * the password, but the commands require a password option.
+   */
+  static List<String> withPasswordPlaceholder(List<String> arguments) {
+    int jobCommand = -1;
+    for (int i = 0; i < arguments.size() && jobCommand < 0; i++) {
+      if (JOB_COMMANDS.contains(arguments.get(i))) {
+        jobCommand = i;
+      }
+    }
+    if (jobCommand < 0
+        || arguments.stream().anyMatch(argument -> argument.startsWith("--password"))) {
+      return arguments;
+    }
+    List<String> completedArguments = new ArrayList<>(arguments);
+    completedArguments.add(jobCommand + 1, PASSWORD_PLACEHOLDER);
+    return completedArguments;
+  }
+
+  /**
+   * Adds the working directory of the client as output directory to download jobs without one.
+   * Otherwise, they would write to the working directory of the daemon.
+   */
+  private String[] withOutputDirectory(String[] arguments, Path workingDirectory) {
+    Optional<ParseResult> downloadCommand = downloadCommand(arguments);
+    if (downloadCommand.isEmpty() || downloadCommand.get().hasMatchedOption("--output-dir")) {
+      return arguments;
+    }
+    List<String> completedArguments = new ArrayList<>(List.of(arguments));
+    completedArguments.add(completedArguments.indexOf("download") + 1,
+        "--output-dir=" + workingDirectory);
+    return completedArguments.toArray(String[]::new);
+  }
+
+  private Optional<Path> outputDirectory(String[] arguments) {
+    return downloadCommand(arguments)
+        .map(downloadCommand -> downloadCommand.matchedOptionValue("--output-dir", "."))
+        .map(outputDirectory -> Path.of(outputDirectory).toAbsolutePath().normalize());
+  }
+
+  private Optional<ParseResult> downloadCommand(String[] arguments) {
+    try {
+      return Optional.ofNullable(commandLine().parseArgs(arguments).subcommand())
+          .filter(jobCommand -> jobCommand.commandSpec().name().equals("download"));
+    } catch (ParameterException e) {
+      return Optional.empty();
+    }
+  }
+
+  private CommandLine commandLine() {
+    return new CommandLine(new PostmanCommand(), new JobFactory(clientRegistry))
+        .setExpandAtFiles(false)
+        .setExecutionExceptionHandler(new DefaultExceptionHandler());
+  }
+
+  static List<String> resolvePaths(List<String> arguments, Path workingDirectory) {
+    List<String> resolvedArguments = new ArrayList<>(arguments.size());
+    for (int i = 0; i < arguments.size(); i++) {
+      String argument = arguments.get(i);
+      int separator = argument.indexOf('=');
+      if (PATH_OPTIONS.contains(argument) && i + 1 < arguments.size()) {
+        resolvedArguments.add(argument);
+        resolvedArguments.add(workingDirectory.resolve(arguments.get(++i)).toString());
+      } else if (separator > 0 && PATH_OPTIONS.contains(argument.substring(0, separator))) {
+        resolvedArguments.add(argument.substring(0, separator + 1)
+            + workingDirectory.resolve(argument.substring(separator + 1)));
+      } else {
+        resolvedArguments.add(argument);
+      }
+    }
+    return resolvedArguments;
+  }
+
+  /**
+   * Stops receiving jobs and removes the socket. Running jobs are not waited for.
+   */
+  @Override
+  public void close() {
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      if (server != null) {
+        server.close();
+      }
+      Files.deleteIfExists(socket);
+    } catch (IOException e) {
+      log.debug("Could not remove socket " + socket, e);
+    }
+    jobs.shutdownNow();
+    connections.shutdownNow();
+  }
+
+  /**
+   * Creates the list and download commands of jobs with the shared clients.
+   */
+  private record JobFactory(ClientRegistry clientRegistry) implements IFactory {
+
+    @Override
+    public <K> K create(Class<K> type) throws Exception {
+      if (type == ListCommand.class) {
+        return type.cast(new ListCommand(clientRegistry));
+      }
+      if (type == DownloadCommand.class) {
+        return type.cast(new DownloadCommand(clientRegistry));
+      }
+      return CommandLine.defaultFactory().create(type);
+    }
+  }
+
+  /**
+   * Thrown when another daemon receives jobs on the socket already.
+   */
+  public static class DaemonRunningException extends RuntimeException {
+
+    private final Path socket;
+
+    public DaemonRunningException(Path socket) {
+      super("A daemon is running on " + socket + " already.");
+      this.socket = socket;
+    }
+
+    public Path socket() {
+      return socket;
+    }
+  }
+}
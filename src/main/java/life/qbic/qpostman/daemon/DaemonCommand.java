@@ -0,0 +1,42 @@
+package life.qbic.qpostman.daemon;
+
+import static picocli.CommandLine.Command;
+import static picocli.CommandLine.Mixin;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import life.qbic.qpostman.common.options.AuthenticationOptions;
+import life.qbic.qpostman.common.options.ServerOptions;
+import life.qbic.qpostman.openbis.ClientRegistry;
+import life.qbic.qpostman.openbis.HttpTransport;
+import life.qbic.qpostman.openbis.TokenCache;
+
+@Command(name = "daemon",
+        description = "Stay logged in and run list and download jobs submitted with the submit command.")
+public class DaemonCommand implements Runnable {
+    @Mixin
+    AuthenticationOptions authenticationOptions;
+    @Mixin
+    ServerOptions serverOptions;
+    @Mixin
+    SocketOptions socketOptions;
+    @Mixin
+    DaemonOptions daemonOptions;
+
+    @Override
+    public void run() {
+        try (ClientRegistry clientRegistry = ClientRegistry.create(serverOptions.as_url,
+            serverOptions.dss_urls, HttpTransport.create(serverOptions), authenticationOptions.user,
+            new String(authenticationOptions.getPassword()),
+            Duration.ofSeconds(serverOptions.sessionCheckIntervalInSeconds),
+            TokenCache.open(authenticationOptions, serverOptions.as_url));
+            Daemon daemon = new Daemon(socketOptions.socketPath(), clientRegistry,
+                daemonOptions.concurrentJobs)) {
+            Runtime.getRuntime().addShutdownHook(new Thread(daemon::close, "daemon-shutdown"));
+            daemon.serve();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
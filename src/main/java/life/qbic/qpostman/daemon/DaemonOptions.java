@@ -0,0 +1,19 @@
+package life.qbic.qpostman.daemon;
+
+import java.util.StringJoiner;
+import picocli.CommandLine.Option;
+
+public class DaemonOptions {
+
+    @Option(names = "--jobs",
+        paramLabel = "<number>",
+        description = "how many jobs to run at the same time. Further jobs wait until a running job ended.")
+    public int concurrentJobs = 2;
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", DaemonOptions.class.getSimpleName() + "[", "]")
+            .add("concurrentJobs=" + concurrentJobs)
+            .toString();
+    }
+}
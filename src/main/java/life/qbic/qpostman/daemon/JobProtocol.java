@@ -0,0 +1,159 @@
+package life.qbic.qpostman.daemon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The messages exchanged between a daemon and a client submitting a job.
+ * <p>
+ * The client sends the protocol version, its working directory and the arguments of the job. The
+ * daemon answers with frames of standard output and standard error of the job while it runs and
+ * ends with the exit code of the job.
+ */
+final class JobProtocol {
+
+  static final int VERSION = 1;
+  static final byte OUT = 'O';
+  static final byte ERR = 'E';
+  static final byte EXIT = 'X';
+
+  private JobProtocol() {
+  }
+
+  /**
+   * A job submitted to the daemon.
+   *
+   * @param workingDirectory the directory relative paths of the job are resolved against
+   * @param arguments        the command line arguments of the job
+   */
+  record Job(Path workingDirectory, List<String> arguments) {
+
+    Job {
+      arguments = List.copyOf(arguments);
+    }
+  }
+
+  static void writeJob(DataOutputStream output, Job job) throws IOException {
+    output.writeInt(VERSION);
+    output.writeUTF(job.workingDirectory().toString());
+    output.writeInt(job.arguments().size());
+    for (String argument : job.arguments()) {
+      output.writeUTF(argument);
+    }
+    output.flush();
+  }
+
+  static Job readJob(DataInputStream input) throws IOException {
+    int version = input.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported job protocol version " + version);
+    }
+    Path workingDirectory = Path.of(input.readUTF());
+    int numberOfArguments = input.readInt();
+    List<String> arguments = new ArrayList<>(numberOfArguments);
+    for (int i = 0; i < numberOfArguments; i++) {
+      arguments.add(input.readUTF());
+    }
+    return new Job(workingDirectory, arguments);
+  }
+
+  /**
+   * @param output the connection to the client
+   * @param type   the type of the frames
+   * @return a stream sending everything written to it in frames of the type; flushing sends a
+   * frame
+   */
+  static OutputStream frames(DataOutputStream output, byte type) {
+    return new FrameOutputStream(output, type);
+  }
+
+  static void writeExit(DataOutputStream output, int exitCode) throws IOException {
+    synchronized (output) {
+      output.writeByte(EXIT);
+      output.writeInt(exitCode);
+      output.flush();
+    }
+  }
+
+  /**
+   * Copies the frames received from the daemon until the job ends.
+   *
+   * @param input  the connection to the daemon
+   * @param out    receives the standard output of the job
+   * @param err    receives the standard error of the job
+   * @return the exit code of the job
+   * @throws IOException if the connection ends before the job
+   */
+  static int copyFrames(DataInputStream input, OutputStream out, OutputStream err)
+      throws IOException {
+    while (true) {
+      byte type;
+      try {
+        type = input.readByte();
+      } catch (EOFException e) {
+        throw new IOException("The daemon closed the connection before the job ended.", e);
+      }
+      switch (type) {
+        case OUT, ERR -> {
+          byte[] bytes = new byte[input.readInt()];
+          input.readFully(bytes);
+          OutputStream target = type == OUT ? out : err;
+          target.write(bytes);
+          target.flush();
+        }
+        case EXIT -> {
+          return input.readInt();
+        }
+        default -> throw new IOException("Unknown frame type " + type);
+      }
+    }
+  }
+
+  private static final class FrameOutputStream extends OutputStream {
+
+    private final DataOutputStream output;
+    private final byte type;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    private FrameOutputStream(DataOutputStream output, byte type) {
+      this.output = output;
+      this.type = type;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+      buffer.write(b);
+    }
+
+    @Override
+    public synchronized void write(byte[] bytes, int offset, int length) {
+      buffer.write(bytes, offset, length);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+      if (buffer.size() == 0) {
+        return;
+      }
+      synchronized (output) {
+        output.writeByte(type);
+        output.writeInt(buffer.size());
+        buffer.writeTo(output);
+        output.flush();
+      }
+      buffer.reset();
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+}
@@ -0,0 +1,32 @@
+package life.qbic.qpostman.daemon;
+
+import static java.util.Objects.isNull;
+
+import java.nio.file.Path;
+import java.util.StringJoiner;
+import life.qbic.qpostman.common.MetadataCache;
+import picocli.CommandLine.Option;
+
+public class SocketOptions {
+
+    @Option(names = "--socket",
+        paramLabel = "<path>",
+        description = "the socket the daemon receives jobs on. Defaults to daemon.sock in the postman-cli user cache directory.")
+    public String socket = null;
+
+    /**
+     * @return the path of the socket
+     */
+    public Path socketPath() {
+        return isNull(socket)
+            ? MetadataCache.defaultDirectory().resolve("daemon.sock")
+            : Path.of(socket).toAbsolutePath();
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", SocketOptions.class.getSimpleName() + "[", "]")
+            .add("socket=" + socketPath())
+            .toString();
+    }
+}
@@ -0,0 +1,76 @@
+package life.qbic.qpostman.daemon;
+
+import static picocli.CommandLine.Command;
+import static picocli.CommandLine.Mixin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import life.qbic.qpostman.daemon.JobProtocol.Job;
+import picocli.CommandLine.Model.CommandSpec;
+import picocli.CommandLine.ParameterException;
+import picocli.CommandLine.Spec;
+import picocli.CommandLine.Unmatched;
+
+@Command(name = "submit",
+        description = "Run a list or download command by a running daemon. Provide the command with all its options after submit.")
+public class SubmitCommand implements Callable<Integer> {
+    @Mixin
+    SocketOptions socketOptions;
+    @Spec
+    CommandSpec spec;
+    @Unmatched
+    List<String> arguments = new ArrayList<>();
+
+    @Override
+    public Integer call() {
+        if (arguments.isEmpty()) {
+            throw new ParameterException(spec.commandLine(),
+                "Please provide the list or download command to submit.");
+        }
+        Path socket = socketOptions.socketPath();
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            throw new DaemonUnavailableException(socket, e);
+        }
+        try (channel) {
+            DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel)));
+            JobProtocol.writeJob(output, new Job(Path.of("").toAbsolutePath(), arguments));
+            DataInputStream input = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(channel)));
+            return JobProtocol.copyFrames(input, System.out, System.err);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Thrown when no daemon could run the job.
+     */
+    public static class DaemonUnavailableException extends RuntimeException {
+
+        private final Path socket;
+
+        public DaemonUnavailableException(Path socket, Throwable cause) {
+            super("No daemon is available on " + socket, cause);
+            this.socket = socket;
+        }
+
+        public Path socket() {
+            return socket;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package life.qbic.qpostman.download;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+import life.qbic.qpostman.common.structures.DataFile;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Chooses the transfer buffer size based on the measured behaviour of previous transfers.
+ * <p>
+ * Every transfer is measured with {@link #measure(ReadableByteChannel, int)}. Once a transfer is
+ * finished, the next buffer size is derived from how much of the offered buffer space every read
+ * filled and from the throughput achieved with that buffer size:
+ * <ul>
+ *   <li>If reads fill the buffer almost completely, the buffer is the limiting factor and grows.
+ *   <li>If reads only fill a small part of the buffer, the buffer shrinks.
+ *   <li>If a larger buffer is slower than the next smaller one, the smaller one is used again.
+ * </ul>
+ * The buffer size never exceeds the maximal size derived from the memory budget.
+ */
+public class AdaptiveBufferSize {
+
+  private static final Logger log = LogManager.getLogger(AdaptiveBufferSize.class);
+
+  private static final int INITIAL_SIZE = 64 * 1024;
+  private static final int MIN_SIZE = 8 * 1024;
+  private static final int MIN_READS_TO_ADAPT = 8;
+  private static final double HIGH_FILL_RATIO = 0.9;
+  private static final double LOW_FILL_RATIO = 0.25;
+  private static final double SLOWER_THRESHOLD = 0.9;
+
+  private final int maxSize;
+  private final Map<Integer, Double> throughputBySize = new HashMap<>();
+  private int currentSize;
+
+  /**
+   * @param memoryBudget       the number of bytes all transfer buffers may use together
+   * @param concurrentBuffers  the maximal number of buffers in use at the same time
+   */
+  public AdaptiveBufferSize(long memoryBudget, int concurrentBuffers) {
+    long maxSizeForBudget = memoryBudget / Math.max(concurrentBuffers, 1);
+    this.maxSize = (int) Math.max(MIN_SIZE, Math.min(maxSizeForBudget, 1 << 30));
+    this.currentSize = Math.min(INITIAL_SIZE, maxSize);
+    log.trace("Adaptive buffer size starts at %s bytes with a maximum of %s bytes".formatted(
+        currentSize, maxSize));
+  }
+
+  /**
+   * @param dataFile the file to transfer
+   * @return the buffer size to transfer the file with
+   */
+  public synchronized int sizeFor(DataFile dataFile) {
+    int size = (int) Math.min(currentSize, dataFile.fileSize().bytes());
+    log.trace("Using a buffer of %s bytes for %s".formatted(size, dataFile.filePath()));
+    return size;
+  }
+
+  /**
+   * Measures a transfer. The buffer size is adapted once the returned channel is closed.
+   *
+   * @param inputChannel the channel to measure
+   * @param bufferSize   the buffer size used for reading from the channel
+   * @return a channel reading from the input channel that measures every read
+   */
+  public ReadableByteChannel measure(ReadableByteChannel inputChannel, int bufferSize) {
+    return new MeasuringChannel(inputChannel, bufferSize);
+  }
+
+  private synchronized void record(int bufferSize, long reads, long offeredBytes, long bytes,
+      long nanos) {
+    if (reads < MIN_READS_TO_ADAPT || nanos <= 0 || bufferSize != currentSize) {
+      // too little data or measured with an outdated size
+      return;
+    }
+    double fillRatio = (double) bytes / offeredBytes;
+    double throughput = bytes / (nanos / 1e9);
+    throughputBySize.merge(bufferSize, throughput, (previous, current) -> (previous + current) / 2);
+    int nextSize = nextSize(bufferSize, fillRatio);
+    if (nextSize != currentSize) {
+      log.trace(
+          "Adapting buffer size from %s to %s bytes (fill ratio %.2f, %.2f MB/s)".formatted(
+              currentSize, nextSize, fillRatio, throughput / 1e6));
+      currentSize = nextSize;
+    }
+  }
+
+  private int nextSize(int bufferSize, double fillRatio) {
+    int smallerSize = Math.max(bufferSize / 2, MIN_SIZE);
+    Double smallerThroughput = throughputBySize.get(smallerSize);
+    double throughput = throughputBySize.get(bufferSize);
+    if (smallerSize < bufferSize && smallerThroughput != null
+        && throughput < smallerThroughput * SLOWER_THRESHOLD) {
+      return smallerSize;
+    }
+    if (fillRatio >= HIGH_FILL_RATIO) {
+      int largerSize = (int) Math.min((long) bufferSize * 2, maxSize);
+      Double largerThroughput = throughputBySize.get(largerSize);
+      if (largerThroughput == null || largerThroughput * SLOWER_THRESHOLD > throughput) {
+        return largerSize;
+      }
+      return bufferSize;
+    }
+    if (fillRatio < LOW_FILL_RATIO) {
+      return smallerSize;
+    }
+    return bufferSize;
+  }
+
+  private class MeasuringChannel implements ReadableByteChannel {
+
+    private final ReadableByteChannel channel;
+    private final int bufferSize;
+    private final long start = System.nanoTime();
+    private long reads = 0;
+    private long offeredBytes = 0;
+    private long bytes = 0;
+    private boolean open = true;
+
+    private MeasuringChannel(ReadableByteChannel channel, int bufferSize) {
+      this.channel = channel;
+      this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+      int offered = dst.remaining();
+      int bytesRead = channel.read(dst);
+      if (bytesRead > 0) {
+        reads++;
+        offeredBytes += offered;
+        bytes += bytesRead;
+      }
+      return bytesRead;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    /**
+     * Finishes the measurement. The underlying channel is not closed.
+     */
+    @Override
+    public void close() {
+      if (open) {
+        open = false;
+        record(bufferSize, reads, offeredBytes, bytes, System.nanoTime() - start);
+      }
+    }
+  }
+}
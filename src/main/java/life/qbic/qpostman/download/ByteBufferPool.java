@@ -0,0 +1,112 @@
+package life.qbic.qpostman.download;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe pool of byte buffers.
+ * <p>
+ * Buffers are kept in size classes of powers of two, so a released buffer can be reused for any
+ * request of at most its capacity. Allocating direct buffers avoids copying data between the Java
+ * heap and native memory on channel reads and writes.
+ * <p>
+ * The pool keeps released buffers up to a total capacity. When a released buffer would exceed it,
+ * buffers of other size classes are dropped first, as they belong to buffer sizes no longer in
+ * use. If that is not enough, the released buffer itself is dropped.
+ */
+public class ByteBufferPool {
+
+  private static final int MIN_CAPACITY = 4096;
+
+  private final boolean direct;
+  private final long maxRetainedBytes;
+  private final Map<Integer, Queue<ByteBuffer>> buffersByCapacity = new ConcurrentHashMap<>();
+  private final AtomicLong retainedBytes = new AtomicLong();
+
+  /**
+   * @param direct           whether to allocate direct buffers
+   * @param maxRetainedBytes the total capacity of the buffers kept for reuse
+   */
+  public ByteBufferPool(boolean direct, long maxRetainedBytes) {
+    this.direct = direct;
+    this.maxRetainedBytes = maxRetainedBytes;
+  }
+
+  /**
+   * Provides a cleared buffer with a limit of the requested size. Please {@link #release(ByteBuffer)}
+   * the buffer after use.
+   *
+   * @param size the number of bytes the buffer shall hold. At least one byte.
+   * @return a buffer with position 0 and limit size
+   */
+  public ByteBuffer acquire(int size) {
+    size = Math.max(size, 1);
+    int capacity = capacityFor(size);
+    ByteBuffer buffer = buffersByCapacity
+        .computeIfAbsent(capacity, it -> new ConcurrentLinkedQueue<>())
+        .poll();
+    if (buffer != null) {
+      retainedBytes.addAndGet(-capacity);
+    } else {
+      buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+    buffer.clear();
+    buffer.limit(size);
+    return buffer;
+  }
+
+  /**
+   * Returns a buffer to the pool. The buffer must not be used after releasing it.
+   *
+   * @param buffer a buffer acquired from this pool
+   */
+  public void release(ByteBuffer buffer) {
+    int capacity = buffer.capacity();
+    while (retainedBytes.addAndGet(capacity) > maxRetainedBytes) {
+      retainedBytes.addAndGet(-capacity);
+      if (!dropOtherThan(capacity)) {
+        return;
+      }
+    }
+    buffersByCapacity
+        .computeIfAbsent(capacity, it -> new ConcurrentLinkedQueue<>())
+        .offer(buffer);
+  }
+
+  /**
+   * Drops one retained buffer of another size class.
+   *
+   * @return true if a buffer was dropped, false if there is none of another size class
+   */
+  private boolean dropOtherThan(int capacity) {
+    for (Map.Entry<Integer, Queue<ByteBuffer>> entry : buffersByCapacity.entrySet()) {
+      if (entry.getKey() != capacity && entry.getValue().poll() != null) {
+        retainedBytes.addAndGet(-entry.getKey());
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the total capacity of the buffers kept for reuse
+   */
+  public long retainedBytes() {
+    return retainedBytes.get();
+  }
+
+  private static int capacityFor(int size) {
+    if (size <= MIN_CAPACITY) {
+      return MIN_CAPACITY;
+    }
+    int highestOneBit = Integer.highestOneBit(size);
+    if (highestOneBit == size || highestOneBit >= 1 << 30) {
+      return size;
+    }
+    return highestOneBit << 1;
+  }
+}
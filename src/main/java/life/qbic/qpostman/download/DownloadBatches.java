@@ -0,0 +1,86 @@
+package life.qbic.qpostman.download;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import life.qbic.qpostman.common.structures.DataFile;
+import life.qbic.qpostman.openbis.DataStoreServer;
+
+/**
+ * Groups small files into batches that can be downloaded with a single request.
+ * <p>
+ * Only files of the same dataset stored on the same data store server are batched together. Files
+ * larger than the maximal file size are not batched and end up in a batch of their own. Batches are
+ * returned in the order of their first file.
+ */
+public class DownloadBatches implements Function<List<DataFile>, List<List<DataFile>>> {
+
+  private final long maxFileSize;
+  private final int maxFilesPerBatch;
+  private final long maxBatchSize;
+
+  /**
+   * @param maxFileSize      the maximal size in bytes of a file to be batched. No files are
+   *                         batched if 0.
+   * @param maxFilesPerBatch the maximal number of files in one batch
+   * @param maxBatchSize     the maximal accumulated size in bytes of all files in one batch
+   */
+  public DownloadBatches(long maxFileSize, int maxFilesPerBatch, long maxBatchSize) {
+    this.maxFileSize = maxFileSize;
+    this.maxFilesPerBatch = maxFilesPerBatch;
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  @Override
+  public List<List<DataFile>> apply(List<DataFile> dataFiles) {
+    List<List<DataFile>> batches = new ArrayList<>();
+    Map<BatchKey, Batch> openBatches = new HashMap<>();
+    for (DataFile dataFile : dataFiles) {
+      long fileSize = dataFile.fileSize().bytes();
+      if (maxFilesPerBatch < 2 || fileSize > maxFileSize) {
+        batches.add(List.of(dataFile));
+        continue;
+      }
+      BatchKey batchKey = new BatchKey(dataFile.dataStoreServer(),
+          dataFile.dataSet().dataSetPermId().getPermId());
+      Batch batch = openBatches.get(batchKey);
+      if (batch == null || batch.files().size() >= maxFilesPerBatch
+          || batch.size() + fileSize > maxBatchSize) {
+        batch = new Batch(new ArrayList<>());
+        openBatches.put(batchKey, batch);
+        batches.add(batch.files());
+      }
+      batch.add(dataFile);
+    }
+    return batches;
+  }
+
+  private record BatchKey(DataStoreServer dataStoreServer, String dataSetPermId) {
+
+  }
+
+  private static final class Batch {
+
+    private final List<DataFile> files;
+    private long size = 0;
+
+    private Batch(List<DataFile> files) {
+      this.files = files;
+    }
+
+    List<DataFile> files() {
+      return files;
+    }
+
+    long size() {
+      return size;
+    }
+
+    void add(DataFile dataFile) {
+      files.add(dataFile);
+      size += dataFile.fileSize().bytes();
+    }
+  }
+}
@@ -2,31 +2,48 @@ package life.qbic.qpostman.download;
 
 import static picocli.CommandLine.Command;
 import static picocli.CommandLine.Mixin;
+import static picocli.CommandLine.Spec;
 
-import ch.ethz.sis.openbis.generic.asapi.v3.IApplicationServerApi;
-import ch.ethz.sis.openbis.generic.dssapi.v3.IDataStoreServerApi;
+import java.io.PrintWriter;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import life.qbic.qpostman.common.FileSizeFormatter;
+import life.qbic.qpostman.common.MetadataCache;
 import life.qbic.qpostman.common.functions.FileFilter;
-import life.qbic.qpostman.common.functions.FindSourceSample;
 import life.qbic.qpostman.common.functions.SearchDataSets;
+import life.qbic.qpostman.common.functions.SearchDataSets.FetchPlan;
 import life.qbic.qpostman.common.functions.SearchFiles;
 import life.qbic.qpostman.common.functions.SearchFiles.DataSetCounterProgressDisplay;
 import life.qbic.qpostman.common.functions.SortFiles;
 import life.qbic.qpostman.common.options.AuthenticationOptions;
+import life.qbic.qpostman.common.options.CacheOptions;
 import life.qbic.qpostman.common.options.FilterOptions;
 import life.qbic.qpostman.common.options.SampleIdentifierOptions;
 import life.qbic.qpostman.common.options.ServerOptions;
 import life.qbic.qpostman.common.structures.DataFile;
 import life.qbic.qpostman.common.structures.DataSetWrapper;
 import life.qbic.qpostman.common.structures.FileSize;
+import life.qbic.qpostman.download.VerifyExistingFiles.VerifiedFiles;
 import life.qbic.qpostman.download.WriteFileToDisk.DownloadReport;
-import life.qbic.qpostman.openbis.OpenBisSessionProvider;
-import life.qbic.qpostman.openbis.ServerFactory;
+import life.qbic.qpostman.openbis.ClientRegistry;
+import life.qbic.qpostman.openbis.HttpTransport;
+import life.qbic.qpostman.openbis.TokenCache;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import picocli.CommandLine.Model.CommandSpec;
 
 @Command(name = "download",
         description = "Download data from QBiC.")
@@ -42,71 +59,391 @@ public class DownloadCommand implements Runnable {
     ServerOptions serverOptions;
     @Mixin
     DownloadOptions downloadOptions;
+    @Mixin
+    CacheOptions cacheOptions;
+    @Spec
+    CommandSpec spec;
+
+    private final Optional<ClientRegistry> sharedClientRegistry;
+
+    public DownloadCommand() {
+        this.sharedClientRegistry = Optional.empty();
+    }
+
+    /**
+     * Downloads with clients shared by several runs instead of creating and closing its own. The
+     * result of every download is written to the command output, as the log is not seen by the
+     * caller.
+     *
+     * @param sharedClientRegistry the clients to use
+     */
+    public DownloadCommand(ClientRegistry sharedClientRegistry) {
+        this.sharedClientRegistry = Optional.of(sharedClientRegistry);
+    }
 
     @Override
     public void run() {
 
             Functions functions = functions();
+            try {
+                run(functions);
+            } finally {
+                functions.pipelinedTransfer().ifPresent(PipelinedTransfer::close);
+                functions.downloadIndex().ifPresent(DownloadIndex::close);
+                if (sharedClientRegistry.isEmpty()) {
+                    functions.clientRegistry().close();
+                }
+            }
+    }
 
-            Collection<DataFile> dataSetFiles = functions.searchDataSets()
-                .andThen(it -> searchFiles(it).apply(it))
-                .apply(sampleIdentifierOptions.getIds());
-
-            List<DataFile> sortedFiles = dataSetFiles.stream()
-                .filter(functions.fileFilter())
-                .sorted(functions.sortFiles().comparator())
-                .toList();
-
-            log.info(
-                "Downloading %s files (%s)".formatted(sortedFiles.size(), FileSizeFormatter.format(
-                    FileSize.of(sortedFiles.stream().mapToLong(file -> file.fileSize().bytes()
-                    ).sum()), 6)));
-            List<DownloadReport> downloadReports = sortedFiles.stream()
-                .map(functions.writeFileToDisk())
-                .peek(downloadReport -> {
-                    if (downloadReport.isSuccess()) {
-                        log.info("Download successful for " + downloadReport.outputPath());
-                    } else {
-                        log.warn("Failed to download " + downloadReport.outputPath());
-                    }
-                })
-                .toList();
+    private void run(Functions functions) {
+            List<DownloadReport> downloadReports = downloadOptions.streaming
+                ? downloadStreaming(functions)
+                : download(functions);
             List<DownloadReport> successfulDownloads = downloadReports.stream()
                 .filter(DownloadReport::isSuccess).toList();
             List<DownloadReport> failedDownloads = downloadReports.stream()
                 .filter(DownloadReport::isFailure).toList();
             log.info("Successfully downloaded " + successfulDownloads.size() +" files.");
             if (!failedDownloads.isEmpty()) {
-                log.warn("Failed to download %s / %s files.".formatted(failedDownloads.size(), downloadReports.size()));
+                warn("Failed to download %s / %s files.".formatted(failedDownloads.size(), downloadReports.size()));
+            }
+            if (sharedClientRegistry.isPresent()) {
+                report(downloadReports, successfulDownloads.size(), failedDownloads.size());
             }
+            functions.pipelinedTransfer().ifPresent(pipelinedTransfer ->
+                log.info("Pipeline queue depth: " + pipelinedTransfer.queueDepth()));
     }
 
-    private SearchFiles searchFiles(Collection<DataSetWrapper> it) {
-        return new SearchFiles(dataStoreServerApis(), new DataSetCounterProgressDisplay(it.size()));
+    private List<DownloadReport> download(Functions functions) {
+        Supplier<Collection<DataFile>> search = () -> functions.searchDataSets()
+            .andThen(it -> searchFiles(functions.clientRegistry(), it).apply(it))
+            .apply(sampleIdentifierOptions.getIds());
+        Collection<DataFile> dataSetFiles = functions.metadataCache().isPresent()
+            ? cachedSearch(functions.metadataCache().get(), search)
+            : search.get();
+
+        List<DataFile> sortedFiles = dataSetFiles.stream()
+            .filter(functions.fileFilter())
+            .sorted(functions.sortFiles().comparator())
+            .toList();
+
+        long totalSize = sortedFiles.stream().mapToLong(file -> file.fileSize().bytes()).sum();
+        inform(
+            "Downloading %s files (%s)".formatted(sortedFiles.size(), FileSizeFormatter.format(
+                FileSize.of(totalSize), 6)));
+        PlannedFiles plannedFiles = plan(functions, sortedFiles);
+        List<DownloadReport> downloadReports = new ArrayList<>(plannedFiles.presentFiles());
+        downloadReports.addAll(transferFiles(functions, plannedFiles.pendingFiles()));
+        recordCompleteDataSets(functions, sortedFiles, downloadReports);
+        recordSyncState(functions, downloadReports);
+        return downloadReports;
+    }
+
+    /**
+     * Downloads the files of every dataset as soon as the dataset was found and its files were
+     * listed. Files are sorted within each listed chunk of datasets only.
+     */
+    private List<DownloadReport> downloadStreaming(Functions functions) {
+        TotalDownloadProgress totalProgress = new TotalDownloadProgress(0, 0,
+            spec.commandLine().getOut());
+        WriteFileToDisk writeFileToDisk = functions.writeFileToDisk().withoutExistingFileCheck();
+        if (downloadOptions.parallelDownloads > 1) {
+            writeFileToDisk = writeFileToDisk.withProgressListeners(dataFile -> totalProgress.listener());
+        }
+        SearchFiles searchFiles = new SearchFiles(functions.clientRegistry().dataStoreServers(),
+            functions.clientRegistry().session(),
+            numberOfDatasets -> log.debug("Indexing %s more datasets".formatted(numberOfDatasets)))
+            .withChunkSize(serverOptions.listingChunkSize)
+            .withThreadsPerServer(serverOptions.listingThreadsPerServer)
+            .withDataStoreRouting(functions.clientRegistry().dataStoreRouting());
+        List<DataFile> foundFiles = new ArrayList<>();
+        List<DownloadReport> downloadReports = new ArrayList<>();
+        try (DownloadScheduler downloadScheduler = new DownloadScheduler(logged(writeFileToDisk),
+            Math.max(downloadOptions.parallelDownloads, 1), parallelDownloadsPerServer())) {
+            Consumer<List<DataFile>> processListedFiles = listedFiles -> {
+                List<DataFile> dataSetFiles = listedFiles.stream()
+                    .filter(functions.fileFilter())
+                    .sorted(functions.sortFiles().comparator())
+                    .toList();
+                foundFiles.addAll(dataSetFiles);
+                PlannedFiles plannedFiles = plan(functions, dataSetFiles);
+                downloadReports.addAll(plannedFiles.presentFiles());
+                List<DataFile> pendingFiles = plannedFiles.pendingFiles();
+                totalProgress.add(pendingFiles.size(),
+                    pendingFiles.stream().mapToLong(file -> file.fileSize().bytes()).sum());
+                functions.downloadBatches().apply(pendingFiles)
+                    .forEach(downloadScheduler::submit);
+            };
+            Optional<List<DataFile>> cachedFiles = cacheOptions.refreshCache
+                ? Optional.empty()
+                : functions.metadataCache().flatMap(metadataCache -> metadataCache.get(cacheKey()));
+            if (cachedFiles.isPresent()) {
+                processListedFiles.accept(cachedFiles.get());
+            } else {
+                List<DataFile> listedFiles = new ArrayList<>();
+                functions.searchDataSets().searchDataSets(sampleIdentifierOptions.getIds(),
+                    dataSets -> searchFiles.searchFiles(dataSets, files -> {
+                        listedFiles.addAll(files);
+                        processListedFiles.accept(files);
+                    }));
+                functions.metadataCache()
+                    .ifPresent(metadataCache -> metadataCache.put(cacheKey(), listedFiles));
+            }
+            inform("Found %s files. Waiting for remaining downloads.".formatted(foundFiles.size()));
+            downloadReports.addAll(downloadScheduler.awaitReports());
+        } finally {
+            totalProgress.finish();
+        }
+        recordCompleteDataSets(functions, foundFiles, downloadReports);
+        recordSyncState(functions, downloadReports);
+        return downloadReports;
+    }
+
+    private List<DataFile> cachedSearch(MetadataCache metadataCache,
+        Supplier<Collection<DataFile>> search) {
+        return cacheOptions.refreshCache
+            ? metadataCache.replace(cacheKey(), search)
+            : metadataCache.computeIfAbsent(cacheKey(), search);
+    }
+
+    private String cacheKey() {
+        return MetadataCache.key(serverOptions.as_url, serverOptions.dss_urls,
+            authenticationOptions.user, sampleIdentifierOptions.getIds());
+    }
+
+    /**
+     * Determines which files need to be downloaded. Files of datasets that were downloaded
+     * completely before and are unchanged on disk and files that exist on disk are not downloaded
+     * again.
+     */
+    private PlannedFiles plan(Functions functions, List<DataFile> files) {
+        List<DownloadReport> presentFiles = new ArrayList<>();
+        List<DataFile> remainingFiles = files;
+        if (functions.downloadIndex().isPresent()) {
+            DownloadIndex downloadIndex = functions.downloadIndex().get();
+            WriteFileToDisk writeFileToDisk = functions.writeFileToDisk();
+            Set<String> completeDataSets = new HashSet<>();
+            filesByDataSet(files).forEach((dataSetPermId, dataSetFiles) -> {
+                if (downloadIndex.isComplete(dataSetPermId, dataSetFiles,
+                    writeFileToDisk::outputPath)) {
+                    inform("Dataset %s exists on your machine.".formatted(dataSetPermId));
+                    completeDataSets.add(dataSetPermId);
+                    dataSetFiles.forEach(file -> presentFiles.add(new DownloadReport(file.crc32(),
+                        file.crc32(), writeFileToDisk.outputPath(file))));
+                }
+            });
+            remainingFiles = files.stream()
+                .filter(file -> !completeDataSets.contains(file.dataSet().dataSetPermId().getPermId()))
+                .toList();
+        }
+        VerifiedFiles verifiedFiles = functions.verifyExistingFiles().apply(remainingFiles);
+        presentFiles.addAll(verifiedFiles.presentFiles());
+        return new PlannedFiles(presentFiles, verifiedFiles.pendingFiles());
+    }
+
+    private record PlannedFiles(List<DownloadReport> presentFiles, List<DataFile> pendingFiles) {
+
+    }
+
+    /**
+     * Records all datasets in the download index of which all files are on disk.
+     */
+    private static void recordCompleteDataSets(Functions functions, List<DataFile> files,
+        List<DownloadReport> downloadReports) {
+        if (functions.downloadIndex().isEmpty()) {
+            return;
+        }
+        DownloadIndex downloadIndex = functions.downloadIndex().get();
+        WriteFileToDisk writeFileToDisk = functions.writeFileToDisk();
+        Set<Path> successfulDownloads = downloadReports.stream()
+            .filter(DownloadReport::isSuccess)
+            .map(DownloadReport::outputPath)
+            .collect(Collectors.toSet());
+        filesByDataSet(files).forEach((dataSetPermId, dataSetFiles) -> {
+            if (dataSetFiles.stream()
+                .allMatch(file -> successfulDownloads.contains(writeFileToDisk.outputPath(file)))) {
+                downloadIndex.recordComplete(dataSetPermId, dataSetFiles);
+            }
+        });
+    }
+
+    /**
+     * Records the registration time of the latest dataset found for every identifier if all files
+     * were downloaded. The next incremental download only searches datasets registered since.
+     */
+    private void recordSyncState(Functions functions, List<DownloadReport> downloadReports) {
+        if (functions.syncState().isEmpty()) {
+            return;
+        }
+        if (!functions.syncState().get().record(sampleIdentifierOptions.getIds(), downloadReports)) {
+            warn("Not all files were downloaded. The next incremental download searches the same datasets again.");
+        }
+    }
+
+    private static Map<String, List<DataFile>> filesByDataSet(List<DataFile> files) {
+        return files.stream()
+            .collect(Collectors.groupingBy(file -> file.dataSet().dataSetPermId().getPermId(),
+                LinkedHashMap::new, Collectors.toList()));
+    }
+
+    private List<DownloadReport> transferFiles(Functions functions, List<DataFile> files) {
+        // all files were verified before
+        WriteFileToDisk writeFileToDisk = functions.writeFileToDisk().withoutExistingFileCheck();
+        List<List<DataFile>> batches = functions.downloadBatches().apply(files);
+        if (downloadOptions.parallelDownloads <= 1) {
+            return batches.stream()
+                .map(logged(writeFileToDisk))
+                .flatMap(List::stream)
+                .toList();
+        }
+        long totalSize = files.stream().mapToLong(file -> file.fileSize().bytes()).sum();
+        TotalDownloadProgress totalProgress = new TotalDownloadProgress(files.size(), totalSize,
+            spec.commandLine().getOut());
+        writeFileToDisk = writeFileToDisk
+            .withProgressListeners(dataFile -> totalProgress.listener());
+        try (DownloadScheduler downloadScheduler = new DownloadScheduler(logged(writeFileToDisk),
+            downloadOptions.parallelDownloads, parallelDownloadsPerServer())) {
+            batches.forEach(downloadScheduler::submit);
+            return downloadScheduler.awaitReports();
+        } finally {
+            totalProgress.finish();
+        }
+    }
+
+    private void report(List<DownloadReport> downloadReports, int successful, int failed) {
+        PrintWriter out = spec.commandLine().getOut();
+        for (DownloadReport downloadReport : downloadReports) {
+            out.println((downloadReport.isSuccess() ? "downloaded\t" : "failed\t")
+                + downloadReport.outputPath());
+        }
+        out.println("Successfully downloaded %s files, failed to download %s files.".formatted(
+            successful, failed));
+        out.flush();
+    }
+
+    private int parallelDownloadsPerServer() {
+        return downloadOptions.parallelDownloadsPerServer > 0
+            ? downloadOptions.parallelDownloadsPerServer
+            : Math.max(downloadOptions.parallelDownloads, 1);
+    }
+
+    /**
+     * Informs the user. Jobs run by a daemon send the message to the client that submitted them,
+     * too.
+     */
+    private void inform(String message) {
+        log.info(message);
+        if (sharedClientRegistry.isPresent()) {
+            spec.commandLine().getOut().println(message);
+        }
+    }
+
+    /**
+     * Warns the user. Jobs run by a daemon send the warning to the client that submitted them,
+     * too.
+     */
+    private void warn(String message) {
+        log.warn(message);
+        if (sharedClientRegistry.isPresent()) {
+            spec.commandLine().getErr().println(message);
+        }
+    }
+
+    private Function<List<DataFile>, List<DownloadReport>> logged(WriteFileToDisk writeFileToDisk) {
+        return batch -> {
+            List<DownloadReport> downloadReports = writeFileToDisk.applyBatch(batch);
+            for (DownloadReport downloadReport : downloadReports) {
+                if (downloadReport.isSuccess()) {
+                    log.info("Download successful for " + downloadReport.outputPath());
+                } else {
+                    warn("Failed to download " + downloadReport.outputPath());
+                }
+            }
+            return downloadReports;
+        };
     }
 
-    private Collection<IDataStoreServerApi> dataStoreServerApis() {
-        return ServerFactory.dataStoreServers(serverOptions.dss_urls,
-            serverOptions.timeoutInMillis);
+    private SearchFiles searchFiles(ClientRegistry clientRegistry, Collection<DataSetWrapper> it) {
+        return new SearchFiles(clientRegistry.dataStoreServers(), clientRegistry.session(),
+            new DataSetCounterProgressDisplay(it.size(), spec.commandLine().getOut()))
+            .withChunkSize(serverOptions.listingChunkSize)
+            .withThreadsPerServer(serverOptions.listingThreadsPerServer)
+            .withDataStoreRouting(clientRegistry.dataStoreRouting());
     }
 
     private Functions functions() {
-        IApplicationServerApi applicationServerApi = ServerFactory.applicationServer(serverOptions.as_url, serverOptions.timeoutInMillis);
-        OpenBisSessionProvider.init(applicationServerApi, authenticationOptions.user, new String(authenticationOptions.getPassword()));
-        SearchDataSets searchDataSets = new SearchDataSets(applicationServerApi);
+        ClientRegistry clientRegistry = sharedClientRegistry.orElseGet(() -> ClientRegistry.create(serverOptions.as_url, serverOptions.dss_urls,
+            HttpTransport.create(serverOptions), authenticationOptions.user, new String(authenticationOptions.getPassword()),
+            Duration.ofSeconds(serverOptions.sessionCheckIntervalInSeconds),
+            TokenCache.open(authenticationOptions, serverOptions.as_url)));
+        SearchDataSets searchDataSets = new SearchDataSets(clientRegistry.applicationServer(), clientRegistry.session())
+            .withChunkSize(serverOptions.sampleChunkSize)
+            .withThreads(serverOptions.sampleSearchThreads)
+            .withPageSize(serverOptions.samplePageSize)
+            // incremental searches request only datasets registered since the last download
+            .withFetchPlan(serverOptions.fetchPlanOr(downloadOptions.incremental
+                ? FetchPlan.LEAN
+                : FetchPlan.RECURSIVE));
         FileFilter myAwesomeFileFilter = FileFilter.create().withSuffixes(filterOptions.suffixes)
             .withPattern(filterOptions.pattern);
-        WriteFileToDisk writeFileToDisk = new WriteFileToDisk(dataStoreServerApis().toArray(IDataStoreServerApi[]::new)[0],
-            downloadOptions.bufferSize, Path.of(downloadOptions.outputPath), downloadOptions.successiveDownloadAttempts,
-            downloadOptions.ignoreSubDirectories);
-        FindSourceSample findSourceSample = new FindSourceSample(serverOptions.sourceSampleType);
+        ByteBufferPool bufferPool = new ByteBufferPool(downloadOptions.directBuffers,
+            downloadOptions.bufferMemory);
+        WriteFileToDisk writeFileToDisk = new WriteFileToDisk(bufferPool, downloadOptions.bufferSize, Path.of(downloadOptions.outputPath), downloadOptions.successiveDownloadAttempts,
+            downloadOptions.ignoreSubDirectories, clientRegistry.session())
+            .withProgressListeners(dataFile -> new DownloadProgressListener(dataFile.fileName(),
+                dataFile.fileSize().bytes(), spec.commandLine().getOut()));
+        Optional<PipelinedTransfer> pipelinedTransfer = downloadOptions.pipelinedTransfer
+            ? Optional.of(new PipelinedTransfer(bufferPool, downloadOptions.pipelineDepth))
+            : Optional.empty();
+        if (pipelinedTransfer.isPresent()) {
+            writeFileToDisk = writeFileToDisk.withPipelinedTransfer(pipelinedTransfer.get());
+        }
+        if (downloadOptions.adaptiveBufferSize) {
+            int buffersPerDownload = pipelinedTransfer.isPresent() ? downloadOptions.pipelineDepth : 1;
+            writeFileToDisk = writeFileToDisk.withAdaptiveBufferSize(new AdaptiveBufferSize(
+                downloadOptions.bufferMemory,
+                Math.max(downloadOptions.parallelDownloads, 1) * buffersPerDownload));
+        }
+        Optional<DownloadIndex> downloadIndex = downloadOptions.downloadIndex
+            ? Optional.of(DownloadIndex.open(Path.of(downloadOptions.outputPath)))
+            : Optional.empty();
+        if (downloadIndex.isPresent()) {
+            writeFileToDisk = writeFileToDisk.withDownloadIndex(downloadIndex.get(),
+                downloadOptions.writeCrc32Files);
+        }
+        int verificationThreads = downloadOptions.verificationThreads > 0
+            ? downloadOptions.verificationThreads
+            : Runtime.getRuntime().availableProcessors();
+        VerifyExistingFiles verifyExistingFiles = new VerifyExistingFiles(writeFileToDisk,
+            verificationThreads);
+        DownloadBatches downloadBatches = new DownloadBatches(downloadOptions.batchFileSize,
+            downloadOptions.batchMaxFiles, downloadOptions.batchMaxSize);
         SortFiles sortFiles = new SortFiles();
-        DataSetWrapper.setFindSourceFunction(findSourceSample);
+        Optional<SyncState> syncState = downloadOptions.incremental
+            ? Optional.of(SyncState.open(Path.of(downloadOptions.outputPath), myAwesomeFileFilter))
+            : Optional.empty();
+        if (syncState.isPresent()) {
+            searchDataSets = searchDataSets.withDataSetListener(syncState.get()::found);
+        }
+        Optional<Instant> registeredSince = syncState
+            .flatMap(it -> it.registeredSince(sampleIdentifierOptions.getIds()));
+        if (registeredSince.isPresent()) {
+            inform("Searching datasets registered since " + registeredSince.get());
+            searchDataSets = searchDataSets.withRegisteredSince(registeredSince.get());
+        }
+        // incremental searches are not cached as they find only part of the datasets
+        Optional<MetadataCache> metadataCache = downloadOptions.incremental
+            ? Optional.empty()
+            : MetadataCache.open(cacheOptions, clientRegistry.dataStoreServers());
 
-        return new Functions(searchDataSets, writeFileToDisk, sortFiles, myAwesomeFileFilter);
+        return new Functions(clientRegistry, searchDataSets, writeFileToDisk, verifyExistingFiles, downloadBatches, sortFiles, myAwesomeFileFilter, pipelinedTransfer, downloadIndex, metadataCache,
+            syncState);
     }
 
-    private record Functions(SearchDataSets searchDataSets, WriteFileToDisk writeFileToDisk, SortFiles sortFiles, FileFilter fileFilter) {
+    private record Functions(ClientRegistry clientRegistry, SearchDataSets searchDataSets, WriteFileToDisk writeFileToDisk, VerifyExistingFiles verifyExistingFiles, DownloadBatches downloadBatches, SortFiles sortFiles, FileFilter fileFilter,
+                             Optional<PipelinedTransfer> pipelinedTransfer, Optional<DownloadIndex> downloadIndex, Optional<MetadataCache> metadataCache,
+                             Optional<SyncState> syncState) {
 
     }
 }
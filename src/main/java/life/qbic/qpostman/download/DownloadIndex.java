@@ -0,0 +1,374 @@
+package life.qbic.qpostman.download;
+
+import static java.util.Objects.isNull;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+import life.qbic.qpostman.common.structures.DataFile;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * An index of all files downloaded into an output directory.
+ * <p>
+ * For every downloaded file the index knows the CRC32 checksum, size and modification time of the
+ * file on disk. Whether a file needs to be downloaded again can thus be decided by a lookup and a
+ * single file system stat, without reading the file or a checksum file next to it. For datasets
+ * that were downloaded completely, the index additionally stores a fingerprint of all files, so
+ * an unchanged dataset can be skipped without verifying its files one by one.
+ * <p>
+ * Changes are appended to a log file. The log is compacted into a snapshot file once it grows too
+ * large and when the index is closed. Both files are located in the output directory.
+ * <p>
+ * Files without an index entry but with a legacy <code>.crc32</code> file next to them are
+ * imported into the index.
+ */
+public class DownloadIndex implements AutoCloseable {
+
+  private static final Logger log = LogManager.getLogger(DownloadIndex.class);
+
+  static final String SNAPSHOT_FILE_NAME = ".postman-index";
+  static final String LOG_FILE_NAME = ".postman-index.log";
+  private static final int MAX_LOG_ENTRIES = 10_000;
+  private static final String FILE_RECORD = "F";
+  private static final String DATASET_RECORD = "D";
+
+  private final Path outputDirectory;
+  private final Path snapshotFile;
+  private final Path logFile;
+  private final Map<FileKey, FileEntry> files = new HashMap<>();
+  private final Map<String, DataSetEntry> dataSets = new HashMap<>();
+  private BufferedWriter logWriter;
+  private int logEntries = 0;
+
+  private DownloadIndex(Path outputDirectory) {
+    this.outputDirectory = outputDirectory;
+    this.snapshotFile = outputDirectory.resolve(SNAPSHOT_FILE_NAME);
+    this.logFile = outputDirectory.resolve(LOG_FILE_NAME);
+  }
+
+  /**
+   * Opens the index of an output directory. If there is no index yet, an empty index is created.
+   *
+   * @param outputDirectory the directory files are downloaded into
+   * @return the index of the output directory
+   */
+  public static DownloadIndex open(Path outputDirectory) {
+    DownloadIndex downloadIndex = new DownloadIndex(outputDirectory);
+    try {
+      Files.createDirectories(outputDirectory);
+      downloadIndex.load(downloadIndex.snapshotFile);
+      downloadIndex.logEntries = downloadIndex.load(downloadIndex.logFile);
+      downloadIndex.logWriter = Files.newBufferedWriter(downloadIndex.logFile,
+          StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    log.debug("Loaded download index of %s with %s files and %s datasets".formatted(
+        outputDirectory, downloadIndex.files.size(), downloadIndex.dataSets.size()));
+    return downloadIndex;
+  }
+
+  /**
+   * Checks whether a data file is present at the output path with the expected content. A file is
+   * considered present if the index knows it with the expected checksum and the file on disk has
+   * the indexed size and modification time. Files with a matching legacy <code>.crc32</code> file
+   * are imported.
+   *
+   * @param dataFile   the data file
+   * @param outputPath the path the data file is written to
+   * @return true if the file is present; false otherwise
+   */
+  public boolean isPresent(DataFile dataFile, Path outputPath) {
+    Optional<BasicFileAttributes> attributes = attributes(outputPath);
+    if (attributes.isEmpty() || attributes.get().size() != dataFile.fileSize().bytes()) {
+      return false;
+    }
+    FileEntry fileEntry;
+    synchronized (this) {
+      fileEntry = files.get(FileKey.of(dataFile));
+    }
+    if (isNull(fileEntry)) {
+      return importCrc32File(dataFile, outputPath, attributes.get());
+    }
+    return fileEntry.crc32() == dataFile.crc32()
+        && fileEntry.size() == attributes.get().size()
+        && fileEntry.lastModified() == attributes.get().lastModifiedTime().toMillis()
+        && fileEntry.outputPath().equals(relativePath(outputPath));
+  }
+
+  /**
+   * Records a data file that was written to disk with the expected content.
+   *
+   * @param dataFile   the data file
+   * @param outputPath the path the data file was written to
+   */
+  public void record(DataFile dataFile, Path outputPath) {
+    Optional<BasicFileAttributes> attributes = attributes(outputPath);
+    if (attributes.isEmpty()) {
+      log.warn("Could not index missing file " + outputPath);
+      return;
+    }
+    FileEntry fileEntry = new FileEntry(dataFile.dataSet().dataSetPermId().getPermId(),
+        dataFile.filePath(), relativePath(outputPath), dataFile.crc32(),
+        attributes.get().size(), attributes.get().lastModifiedTime().toMillis());
+    synchronized (this) {
+      files.put(fileEntry.key(), fileEntry);
+      append(fileEntry.toRecord());
+    }
+  }
+
+  /**
+   * Checks whether all files of a dataset were downloaded completely before, the dataset did not
+   * change since and all its files are still on disk unchanged. Every file on disk must have the
+   * indexed size and modification time, so this costs a file system stat per file but does not
+   * read any file.
+   *
+   * @param dataSetPermId the dataset
+   * @param dataFiles     all files of the dataset that shall be downloaded
+   * @param outputPaths   provides the path every data file is written to
+   * @return true if the dataset was downloaded completely before and is unchanged on disk; false
+   * otherwise
+   */
+  public boolean isComplete(String dataSetPermId, List<DataFile> dataFiles,
+      Function<DataFile, Path> outputPaths) {
+    DataSetEntry dataSetEntry;
+    synchronized (this) {
+      dataSetEntry = dataSets.get(dataSetPermId);
+    }
+    return !dataFiles.isEmpty()
+        && !isNull(dataSetEntry)
+        && dataSetEntry.fileCount() == dataFiles.size()
+        && dataSetEntry.fingerprint() == fingerprint(dataFiles)
+        && dataFiles.stream().allMatch(dataFile -> isUnchanged(dataFile, outputPaths.apply(dataFile)));
+  }
+
+  private boolean isUnchanged(DataFile dataFile, Path outputPath) {
+    FileEntry fileEntry;
+    synchronized (this) {
+      fileEntry = files.get(FileKey.of(dataFile));
+    }
+    if (isNull(fileEntry)) {
+      return false;
+    }
+    Optional<BasicFileAttributes> attributes = attributes(outputPath);
+    return attributes.isPresent()
+        && fileEntry.size() == attributes.get().size()
+        && fileEntry.lastModified() == attributes.get().lastModifiedTime().toMillis()
+        && fileEntry.outputPath().equals(relativePath(outputPath));
+  }
+
+  /**
+   * Records that all files of a dataset were downloaded completely.
+   *
+   * @param dataSetPermId the dataset
+   * @param dataFiles     all files of the dataset that were downloaded
+   */
+  public synchronized void recordComplete(String dataSetPermId, List<DataFile> dataFiles) {
+    DataSetEntry dataSetEntry = new DataSetEntry(dataSetPermId, fingerprint(dataFiles),
+        dataFiles.size());
+    if (dataSetEntry.equals(dataSets.get(dataSetPermId))) {
+      return;
+    }
+    dataSets.put(dataSetPermId, dataSetEntry);
+    append(dataSetEntry.toRecord());
+  }
+
+  private boolean importCrc32File(DataFile dataFile, Path outputPath,
+      BasicFileAttributes attributes) {
+    Optional<Long> legacyCrc32 = WriteUtils.readCrc32FromFile(outputPath);
+    if (legacyCrc32.isEmpty() || legacyCrc32.get() != dataFile.crc32()) {
+      return false;
+    }
+    log.trace("Importing checksum file of " + outputPath);
+    FileEntry fileEntry = new FileEntry(dataFile.dataSet().dataSetPermId().getPermId(),
+        dataFile.filePath(), relativePath(outputPath), legacyCrc32.get(), attributes.size(),
+        attributes.lastModifiedTime().toMillis());
+    synchronized (this) {
+      files.put(fileEntry.key(), fileEntry);
+      append(fileEntry.toRecord());
+    }
+    return true;
+  }
+
+  private static long fingerprint(List<DataFile> dataFiles) {
+    CRC32 fingerprint = new CRC32();
+    dataFiles.stream()
+        .sorted(Comparator.comparing(DataFile::filePath))
+        .map(dataFile -> "%s\t%s\t%s\n".formatted(dataFile.filePath(),
+            Long.toHexString(dataFile.crc32()), dataFile.fileSize().bytes()))
+        .forEach(line -> fingerprint.update(line.getBytes(StandardCharsets.UTF_8)));
+    return fingerprint.getValue();
+  }
+
+  private String relativePath(Path outputPath) {
+    return outputDirectory.toAbsolutePath().normalize()
+        .relativize(outputPath.toAbsolutePath().normalize())
+        .toString();
+  }
+
+  private static Optional<BasicFileAttributes> attributes(Path path) {
+    try {
+      return Optional.of(Files.readAttributes(path, BasicFileAttributes.class));
+    } catch (NoSuchFileException e) {
+      return Optional.empty();
+    } catch (IOException e) {
+      log.warn("Could not read attributes of " + path);
+      return Optional.empty();
+    }
+  }
+
+  private int load(Path file) throws IOException {
+    if (!Files.exists(file)) {
+      return 0;
+    }
+    int records = 0;
+    for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+      String[] fields = line.split("\t", -1);
+      try {
+        if (fields[0].equals(FILE_RECORD)) {
+          FileEntry fileEntry = FileEntry.fromRecord(fields);
+          files.put(fileEntry.key(), fileEntry);
+        } else if (fields[0].equals(DATASET_RECORD)) {
+          DataSetEntry dataSetEntry = DataSetEntry.fromRecord(fields);
+          dataSets.put(dataSetEntry.dataSetPermId(), dataSetEntry);
+        }
+        records++;
+      } catch (RuntimeException e) {
+        // e.g. a partially written last line after an interrupted download
+        log.debug("Skipping malformed index record in %s: %s".formatted(file, line));
+      }
+    }
+    return records;
+  }
+
+  private void append(String record) {
+    try {
+      logWriter.write(record);
+      logWriter.newLine();
+      logWriter.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    if (++logEntries >= MAX_LOG_ENTRIES) {
+      compact();
+    }
+  }
+
+  /**
+   * Writes all entries into a new snapshot and empties the log.
+   */
+  private void compact() {
+    Path temporarySnapshot = outputDirectory.resolve(SNAPSHOT_FILE_NAME + ".tmp");
+    try {
+      try (BufferedWriter snapshotWriter = Files.newBufferedWriter(temporarySnapshot,
+          StandardCharsets.UTF_8)) {
+        for (FileEntry fileEntry : files.values()) {
+          snapshotWriter.write(fileEntry.toRecord());
+          snapshotWriter.newLine();
+        }
+        for (DataSetEntry dataSetEntry : dataSets.values()) {
+          snapshotWriter.write(dataSetEntry.toRecord());
+          snapshotWriter.newLine();
+        }
+      }
+      Files.move(temporarySnapshot, snapshotFile, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      logWriter.close();
+      logWriter = Files.newBufferedWriter(logFile, StandardCharsets.UTF_8,
+          StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+      logEntries = 0;
+      log.trace("Compacted download index of " + outputDirectory);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    if (logEntries > 0) {
+      compact();
+    }
+    try {
+      logWriter.close();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+  }
+
+  private static String unescape(String value) {
+    StringBuilder result = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char character = value.charAt(i);
+      if (character == '\\' && i + 1 < value.length()) {
+        char escaped = value.charAt(++i);
+        result.append(switch (escaped) {
+          case 't' -> '\t';
+          case 'n' -> '\n';
+          default -> escaped;
+        });
+      } else {
+        result.append(character);
+      }
+    }
+    return result.toString();
+  }
+
+  private record FileKey(String dataSetPermId, String filePath) {
+
+    static FileKey of(DataFile dataFile) {
+      return new FileKey(dataFile.dataSet().dataSetPermId().getPermId(), dataFile.filePath());
+    }
+  }
+
+  private record FileEntry(String dataSetPermId, String filePath, String outputPath, long crc32,
+                           long size, long lastModified) {
+
+    FileKey key() {
+      return new FileKey(dataSetPermId, filePath);
+    }
+
+    String toRecord() {
+      return String.join("\t", FILE_RECORD, escape(dataSetPermId), escape(filePath),
+          escape(outputPath), Long.toHexString(crc32), Long.toString(size),
+          Long.toString(lastModified));
+    }
+
+    static FileEntry fromRecord(String[] fields) {
+      return new FileEntry(unescape(fields[1]), unescape(fields[2]), unescape(fields[3]),
+          Long.parseLong(fields[4], 16), Long.parseLong(fields[5]), Long.parseLong(fields[6]));
+    }
+  }
+
+  private record DataSetEntry(String dataSetPermId, long fingerprint, int fileCount) {
+
+    String toRecord() {
+      return String.join("\t", DATASET_RECORD, escape(dataSetPermId),
+          Long.toHexString(fingerprint), Integer.toString(fileCount));
+    }
+
+    static DataSetEntry fromRecord(String[] fields) {
+      return new DataSetEntry(unescape(fields[1]), Long.parseLong(fields[2], 16),
+          Integer.parseInt(fields[3]));
+    }
+  }
+}
@@ -17,6 +17,33 @@ public class DownloadOptions {
             hidden = true)
     public int bufferSize;
 
+    @Option(names = {"--adaptive-buffer-size"}, defaultValue = "false",
+        description = "choose the buffer size for every file based on the throughput of previous files instead of using --buffer-size",
+        hidden = true)
+    public boolean adaptiveBufferSize;
+
+    @Option(names = {"--buffer-memory"}, defaultValue = "268435456",
+        paramLabel = "<bytes>",
+        description = "the maximal memory of the buffers kept for reuse and, with --adaptive-buffer-size, of all buffers together",
+        hidden = true)
+    public long bufferMemory;
+
+    @Option(names = "--direct-buffers", defaultValue = "false",
+        description = "transfer data using buffers in native memory instead of the Java heap",
+        hidden = true)
+    public boolean directBuffers;
+
+    @Option(names = "--pipelined-transfer", defaultValue = "false",
+        description = "read from the network and write to disk in separate threads",
+        hidden = true)
+    public boolean pipelinedTransfer;
+
+    @Option(names = "--pipeline-depth", defaultValue = "4",
+        paramLabel = "<number>",
+        description = "the number of buffers between reading from the network and writing to disk",
+        hidden = true)
+    public int pipelineDepth;
+
     @Option(names = {"-o", "--output-dir"},
         description = "specify where to write the downloaded data")
     public String outputPath = Optional.ofNullable(System.getenv("user.dir")).orElse(".");
@@ -32,11 +59,74 @@ public class DownloadOptions {
         showDefaultValue = Visibility.ON_DEMAND)
     public boolean ignoreSubDirectories;
 
+    @Option(names = "--download-index", negatable = true,
+        defaultValue = "true", fallbackValue = "true",
+        description = "keep an index of downloaded files in the output directory to skip files that were downloaded before",
+        hidden = true)
+    public boolean downloadIndex;
+
+    @Option(names = "--write-crc32-files", defaultValue = "false",
+        description = "write a .crc32 file next to every downloaded file. Always done without --download-index.",
+        hidden = true)
+    public boolean writeCrc32Files;
+
+    @Option(names = "--incremental", defaultValue = "false",
+        description = "only download datasets registered since the last incremental download of the same identifiers into the output directory")
+    public boolean incremental;
+
+    @Option(names = "--parallel-downloads",
+        defaultValue = "1",
+        paramLabel = "<number>",
+        description = "how many files to download at the same time",
+        showDefaultValue = Visibility.ALWAYS)
+    public int parallelDownloads;
+
+    @Option(names = "--parallel-downloads-per-server",
+        defaultValue = "0",
+        paramLabel = "<number>",
+        description = "how many files to download at the same time from a single data store server. Unlimited if 0.",
+        hidden = true)
+    public int parallelDownloadsPerServer;
+
+    @Option(names = "--streaming", defaultValue = "false",
+        description = "start downloading the files of a dataset as soon as it was found. Files are not sorted across datasets.",
+        hidden = true)
+    public boolean streaming;
+
+    @Option(names = "--verification-threads",
+        defaultValue = "0",
+        paramLabel = "<number>",
+        description = "how many existing files to verify at the same time before downloading. Number of available processors if 0.",
+        hidden = true)
+    public int verificationThreads;
+
+    @Option(names = "--batch-file-size",
+        defaultValue = "0",
+        paramLabel = "<bytes>",
+        description = "download files up to this size together with other files of the same dataset in one request. Disabled if 0.",
+        hidden = true)
+    public long batchFileSize;
+
+    @Option(names = "--batch-max-files",
+        defaultValue = "500",
+        paramLabel = "<number>",
+        description = "the maximal number of files downloaded in one request",
+        hidden = true)
+    public int batchMaxFiles;
+
+    @Option(names = "--batch-max-size",
+        defaultValue = "67108864",
+        paramLabel = "<bytes>",
+        description = "the maximal number of bytes downloaded in one request for batched files",
+        hidden = true)
+    public long batchMaxSize;
+
     @Override
     public String toString() {
         return new StringJoiner(", ", DownloadOptions.class.getSimpleName() + "[", "]")
                 .add("bufferSize=" + bufferSize)
                 .add("outputPath='" + outputPath + "'")
+                .add("parallelDownloads=" + parallelDownloads)
                 .toString();
     }
 }
@@ -1,5 +1,6 @@
 package life.qbic.qpostman.download;
 
+import java.io.PrintWriter;
 import life.qbic.qpostman.common.ProgressBar;
 
 /**
@@ -14,6 +15,10 @@ public class DownloadProgressListener implements WriteProgressListener {
     progressBar = new ProgressBar(fileName, totalFileSize);
   }
 
+  public DownloadProgressListener(String fileName, long totalFileSize, PrintWriter out) {
+    progressBar = new ProgressBar(fileName, totalFileSize, out);
+  }
+
   @Override
   public void update(long bytesWritten) {
     progressBar.updateProgress(bytesWritten);
@@ -0,0 +1,117 @@
+package life.qbic.qpostman.download;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import life.qbic.qpostman.common.structures.DataFile;
+import life.qbic.qpostman.download.WriteFileToDisk.DownloadReport;
+import life.qbic.qpostman.openbis.DataStoreServer;
+
+/**
+ * Schedules file downloads on a fixed number of workers. Files are submitted in batches that are
+ * downloaded together.
+ * <p>
+ * Every data store server gets its own workers, so a busy server does not hold back downloads from
+ * other servers. The total number of concurrent downloads is limited across all servers.
+ * <p>
+ * The downloads of one server start in the order they were submitted. Servers compete for the
+ * limit of concurrent downloads, so the downloads of different servers run in no particular order.
+ * The download reports are reordered to match the submission order, regardless of the server and
+ * of the order in which the downloads finished.
+ */
+public class DownloadScheduler implements AutoCloseable {
+
+  private final Function<List<DataFile>, List<DownloadReport>> download;
+  private final int workersPerServer;
+  private final Semaphore concurrentDownloads;
+  private final Map<DataStoreServer, ExecutorService> serverExecutors = new HashMap<>();
+  private final List<Future<List<DownloadReport>>> scheduledDownloads = new ArrayList<>();
+
+  /**
+   * @param download         the download of a batch of files
+   * @param workers          the maximal number of concurrent downloads
+   * @param workersPerServer the maximal number of concurrent downloads from one data store server
+   */
+  public DownloadScheduler(Function<List<DataFile>, List<DownloadReport>> download, int workers,
+      int workersPerServer) {
+    requireNonNull(download, "download must not be null");
+    if (workers < 1 || workersPerServer < 1) {
+      throw new IllegalArgumentException("At least one download worker is required.");
+    }
+    this.download = download;
+    this.workersPerServer = Math.min(workers, workersPerServer);
+    this.concurrentDownloads = new Semaphore(workers);
+  }
+
+  /**
+   * Schedules the download of a batch of data files. All files of the batch must be stored on the
+   * same data store server.
+   *
+   * @param batch the files to download
+   */
+  public void submit(List<DataFile> batch) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    ExecutorService executorService = serverExecutors.computeIfAbsent(
+        batch.get(0).dataStoreServer(), this::newServerExecutor);
+    scheduledDownloads.add(executorService.submit(() -> {
+      concurrentDownloads.acquire();
+      try {
+        return download.apply(batch);
+      } finally {
+        concurrentDownloads.release();
+      }
+    }));
+  }
+
+  private ExecutorService newServerExecutor(DataStoreServer dataStoreServer) {
+    return Executors.newFixedThreadPool(workersPerServer, runnable -> {
+      Thread thread = new Thread(runnable);
+      thread.setName("download-" + thread.getId());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Waits for all scheduled downloads to finish.
+   *
+   * @return the download reports in the order the files were submitted
+   */
+  public List<DownloadReport> awaitReports() {
+    List<DownloadReport> downloadReports = new ArrayList<>(scheduledDownloads.size());
+    for (Future<List<DownloadReport>> scheduledDownload : scheduledDownloads) {
+      downloadReports.addAll(await(scheduledDownload));
+    }
+    return downloadReports;
+  }
+
+  private static List<DownloadReport> await(Future<List<DownloadReport>> scheduledDownload) {
+    try {
+      return scheduledDownload.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException runtimeException) {
+        throw runtimeException;
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  @Override
+  public void close() {
+    serverExecutors.values().forEach(ExecutorService::shutdownNow);
+  }
+}
@@ -0,0 +1,259 @@
+package life.qbic.qpostman.download;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Transfers data from a network channel to a file with separate reading and writing stages.
+ * <p>
+ * A reader thread fills buffers from the network and hands them to the writing thread through a
+ * bounded queue. The writing thread computes the checksum, writes the buffers to disk and returns
+ * them to the reader. Slow disk writes thus do not stall the network and vice versa as long as the
+ * queue is neither full nor empty.
+ * <p>
+ * The number of filled buffers waiting for the writer is sampled whenever the writer takes a
+ * buffer. A queue that is mostly full indicates that the disk is the bottleneck, a queue that is
+ * mostly empty indicates that the network is the bottleneck.
+ * <p>
+ * Please {@link #close()} the transfer once all files are written to stop the reader threads.
+ */
+public class PipelinedTransfer implements AutoCloseable {
+
+  private static final Logger log = LogManager.getLogger(PipelinedTransfer.class);
+  private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+
+  private final ByteBufferPool bufferPool;
+  private final int depth;
+  private final ExecutorService readers = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable);
+    thread.setName("transfer-reader-" + thread.getId());
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final AtomicLong queueDepthSamples = new AtomicLong();
+  private final AtomicLong queueDepthSum = new AtomicLong();
+  private final AtomicLong maxQueueDepth = new AtomicLong();
+
+  /**
+   * @param bufferPool the pool to take the buffers from
+   * @param depth      the number of buffers in flight per transfer
+   */
+  public PipelinedTransfer(ByteBufferPool bufferPool, int depth) {
+    if (depth < 2) {
+      throw new IllegalArgumentException("A pipeline needs at least two buffers.");
+    }
+    this.bufferPool = bufferPool;
+    this.depth = depth;
+  }
+
+  /**
+   * Writes all bytes from the input channel to the output channel and computes their CRC32
+   * checksum.
+   *
+   * @param inputChannel     the channel to read from
+   * @param outputChannel    the channel to write to
+   * @param bufferSize       the size of every buffer in the pipeline
+   * @param progressListener is notified about written bytes
+   * @return the CRC32 checksum of the written bytes
+   * @throws IOException if reading or writing fails
+   */
+  public long write(ReadableByteChannel inputChannel, FileChannel outputChannel, int bufferSize,
+      WriteProgressListener progressListener) throws IOException {
+    BlockingQueue<ByteBuffer> emptyBuffers = new ArrayBlockingQueue<>(depth);
+    BlockingQueue<ByteBuffer> filledBuffers = new ArrayBlockingQueue<>(depth + 1);
+    for (int i = 0; i < depth; i++) {
+      emptyBuffers.add(bufferPool.acquire(bufferSize));
+    }
+    AtomicBoolean cancelled = new AtomicBoolean();
+    Future<?> reader = readers.submit(() -> {
+      read(inputChannel, bufferSize, emptyBuffers, filledBuffers, cancelled);
+      return null;
+    });
+    CRC32 crc32 = new CRC32();
+    long transferSamples = 0;
+    long transferQueueDepth = 0;
+    int transferMaxQueueDepth = 0;
+    ByteBuffer buffer = null;
+    try {
+      while (true) {
+        int queueDepth = filledBuffers.size();
+        transferSamples++;
+        transferQueueDepth += queueDepth;
+        transferMaxQueueDepth = Math.max(transferMaxQueueDepth, queueDepth);
+        buffer = filledBuffers.take();
+        if (buffer == END_OF_STREAM) {
+          buffer = null;
+          break;
+        }
+        int bytesRead = buffer.remaining();
+        buffer.mark();
+        crc32.update(buffer);
+        buffer.reset();
+        while (buffer.hasRemaining()) {
+          outputChannel.write(buffer);
+        }
+        progressListener.update(bytesRead);
+        buffer.clear().limit(bufferSize);
+        emptyBuffers.put(buffer);
+        buffer = null;
+      }
+      reader.get();
+    } catch (InterruptedException e) {
+      cancel(cancelled, buffer, emptyBuffers, filledBuffers, reader);
+      Thread.currentThread().interrupt();
+      throw new IOException("Transfer was interrupted.", e);
+    } catch (ExecutionException e) {
+      releaseAll(emptyBuffers, filledBuffers);
+      if (e.getCause() instanceof IOException ioException) {
+        throw ioException;
+      }
+      throw new IOException(e.getCause());
+    } catch (IOException | RuntimeException e) {
+      cancel(cancelled, buffer, emptyBuffers, filledBuffers, reader);
+      throw e;
+    } finally {
+      recordQueueDepth(transferSamples, transferQueueDepth, transferMaxQueueDepth);
+    }
+    // the reader finished, so all buffers are back
+    emptyBuffers.forEach(bufferPool::release);
+    progressListener.finish();
+    return crc32.getValue();
+  }
+
+  private static void read(ReadableByteChannel inputChannel, int bufferSize,
+      BlockingQueue<ByteBuffer> emptyBuffers, BlockingQueue<ByteBuffer> filledBuffers,
+      AtomicBoolean cancelled) throws IOException, InterruptedException {
+    ByteBuffer buffer = null;
+    try {
+      boolean endOfStream = false;
+      while (!endOfStream && !cancelled.get()) {
+        buffer = emptyBuffers.take();
+        while (buffer.hasRemaining() && !cancelled.get()) {
+          if (inputChannel.read(buffer) < 0) {
+            endOfStream = true;
+            break;
+          }
+        }
+        buffer.flip();
+        if (buffer.hasRemaining() && !cancelled.get()) {
+          filledBuffers.put(buffer);
+        } else {
+          buffer.clear().limit(bufferSize);
+          emptyBuffers.put(buffer);
+        }
+        buffer = null;
+      }
+    } finally {
+      // hand back the buffer a failed read was filling, so the writer can release it
+      if (buffer != null) {
+        buffer.clear().limit(bufferSize);
+        emptyBuffers.offer(buffer);
+      }
+      // always release the writer, even if reading failed. There is always space left for it.
+      filledBuffers.offer(END_OF_STREAM);
+    }
+  }
+
+  /**
+   * Stops the reader after the writer failed and returns all buffers to the pool.
+   * <p>
+   * The reader is not interrupted, as interrupting a thread blocked on an interruptible channel
+   * closes the channel, which may be shared with the following files of a batch. Instead, the
+   * writer hands all buffers back so the reader is not blocked waiting for one, and the reader
+   * stops after its current read.
+   */
+  private void cancel(AtomicBoolean cancelled, ByteBuffer writerBuffer,
+      BlockingQueue<ByteBuffer> emptyBuffers, BlockingQueue<ByteBuffer> filledBuffers,
+      Future<?> reader) {
+    cancelled.set(true);
+    if (writerBuffer != null && writerBuffer != END_OF_STREAM) {
+      emptyBuffers.offer(writerBuffer);
+    }
+    List<ByteBuffer> drained = new ArrayList<>();
+    filledBuffers.drainTo(drained);
+    drained.stream().filter(it -> it != END_OF_STREAM).forEach(emptyBuffers::offer);
+    boolean interrupted = false;
+    while (true) {
+      try {
+        reader.get();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      } catch (ExecutionException | CancellationException e) {
+        log.debug("Reader stopped after the transfer failed: " + e.getMessage());
+        break;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    releaseAll(emptyBuffers, filledBuffers);
+  }
+
+  private void releaseAll(BlockingQueue<ByteBuffer> emptyBuffers,
+      BlockingQueue<ByteBuffer> filledBuffers) {
+    emptyBuffers.forEach(bufferPool::release);
+    emptyBuffers.clear();
+    filledBuffers.stream().filter(it -> it != END_OF_STREAM).forEach(bufferPool::release);
+    filledBuffers.clear();
+  }
+
+  private void recordQueueDepth(long samples, long queueDepthSum, int maxQueueDepth) {
+    if (samples == 0) {
+      return;
+    }
+    log.trace("Pipeline queue depth: average %.2f, maximum %s of %s buffers".formatted(
+        (double) queueDepthSum / samples, maxQueueDepth, depth));
+    this.queueDepthSamples.addAndGet(samples);
+    this.queueDepthSum.addAndGet(queueDepthSum);
+    this.maxQueueDepth.accumulateAndGet(maxQueueDepth, Math::max);
+  }
+
+  /**
+   * @return the queue depth statistics over all transfers so far
+   */
+  public QueueDepth queueDepth() {
+    long samples = queueDepthSamples.get();
+    double average = samples == 0 ? 0 : (double) queueDepthSum.get() / samples;
+    return new QueueDepth(average, (int) maxQueueDepth.get(), depth);
+  }
+
+  /**
+   * The number of filled buffers waiting to be written.
+   *
+   * @param average the average number of waiting buffers
+   * @param maximum the maximal number of waiting buffers
+   * @param depth   the number of buffers available per transfer
+   */
+  public record QueueDepth(double average, int maximum, int depth) {
+
+    @Override
+    public String toString() {
+      return "average %.2f, maximum %s of %s buffers".formatted(average, maximum, depth);
+    }
+  }
+
+  /**
+   * Stops the reader threads once their transfers ended.
+   */
+  @Override
+  public void close() {
+    readers.shutdown();
+  }
+}
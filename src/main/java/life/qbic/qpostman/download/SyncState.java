@@ -0,0 +1,182 @@
+package life.qbic.qpostman.download;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import life.qbic.qpostman.common.functions.FileFilter;
+import life.qbic.qpostman.common.structures.DataSetWrapper;
+import life.qbic.qpostman.download.WriteFileToDisk.DownloadReport;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Remembers up to which registration time the datasets of sample identifiers were downloaded into
+ * an output directory.
+ * <p>
+ * The state is stored in the output directory with one line per identifier and file filter
+ * holding the identifier, the registration time of the latest dataset downloaded for it and the
+ * {@link FileFilter#description() description} of the file filter. A download with another file
+ * filter does not use the state of previous downloads, as they skipped other files.
+ * <p>
+ * While downloading, the datasets found for every identifier are told to the state with
+ * {@link #found(String, DataSetWrapper)}. Once all files were downloaded, the latest registration
+ * time found for every identifier is {@link #record(Collection, Collection) recorded}.
+ */
+public class SyncState {
+
+  private static final Logger log = LogManager.getLogger(SyncState.class);
+
+  static final String FILE_NAME = ".postman-sync";
+
+  private final Path file;
+  private final String filter;
+  private final Map<Key, Instant> registeredUntil = new TreeMap<>();
+  private final Map<String, Instant> foundUntil = new HashMap<>();
+
+  private SyncState(Path file, String filter) {
+    this.file = file;
+    this.filter = filter;
+  }
+
+  /**
+   * Reads the sync state of an output directory. A missing state is empty.
+   *
+   * @param outputDirectory the output directory
+   * @param fileFilter      the filter deciding which files of the datasets are downloaded
+   * @return the sync state of the output directory
+   */
+  public static SyncState open(Path outputDirectory, FileFilter fileFilter) {
+    SyncState syncState = new SyncState(outputDirectory.resolve(FILE_NAME),
+        escape(fileFilter.description()));
+    try {
+      for (String line : Files.readAllLines(syncState.file, StandardCharsets.UTF_8)) {
+        // the filter is missing in lines written before filters were part of the state
+        String[] fields = line.split("\t", 3);
+        if (fields.length < 2) {
+          continue;
+        }
+        try {
+          syncState.registeredUntil.put(new Key(fields.length == 3 ? fields[2] : "", fields[0]),
+              Instant.parse(fields[1]));
+        } catch (DateTimeParseException e) {
+          log.debug("Ignoring invalid sync state entry " + line);
+        }
+      }
+    } catch (NoSuchFileException e) {
+      log.debug("No sync state found in " + outputDirectory);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return syncState;
+  }
+
+  /**
+   * Determines the registration time from which on datasets need to be downloaded. Only if all
+   * identifiers were synchronized before with the same file filter, older datasets can be skipped.
+   *
+   * @param identifiers the sample identifiers to synchronize
+   * @return the earliest registration time recorded for the identifiers; empty if an identifier
+   * was not synchronized before
+   */
+  public synchronized Optional<Instant> registeredSince(Collection<String> identifiers) {
+    List<Key> keys = identifiers.stream().map(identifier -> new Key(filter, identifier)).toList();
+    if (keys.isEmpty() || !registeredUntil.keySet().containsAll(keys)) {
+      return Optional.empty();
+    }
+    return keys.stream()
+        .map(registeredUntil::get)
+        .min(Instant::compareTo);
+  }
+
+  /**
+   * Takes note of a dataset found for an identifier.
+   *
+   * @param identifier the sample identifier the dataset was found for
+   * @param dataSet    the found dataset
+   */
+  public synchronized void found(String identifier, DataSetWrapper dataSet) {
+    foundUntil.merge(identifier, dataSet.registrationTime(),
+        (first, second) -> first.isAfter(second) ? first : second);
+  }
+
+  /**
+   * Records that all found datasets of the identifiers were downloaded. For every identifier, the
+   * registration time of the latest dataset found for it is recorded. Identifiers without found
+   * datasets are synchronized until the latest registration time found for any identifier, or
+   * keep the time they were synchronized until before if no dataset was found at all.
+   * <p>
+   * Nothing is recorded if a file failed to download, so the next download searches the same
+   * datasets again.
+   *
+   * @param identifiers     the synchronized sample identifiers
+   * @param downloadReports the reports of all files of the found datasets
+   * @return whether the state was recorded
+   */
+  public synchronized boolean record(Collection<String> identifiers,
+      Collection<DownloadReport> downloadReports) {
+    if (downloadReports.stream().anyMatch(DownloadReport::isFailure)) {
+      return false;
+    }
+    Optional<Instant> latestFound = foundUntil.values().stream().max(Instant::compareTo);
+    int synchronizedIdentifiers = 0;
+    for (String identifier : identifiers) {
+      Key key = new Key(filter, identifier);
+      Optional<Instant> until = Optional.ofNullable(foundUntil.get(identifier))
+          .or(() -> latestFound)
+          .or(() -> Optional.ofNullable(registeredUntil.get(key)));
+      if (until.isPresent()) {
+        registeredUntil.put(key, until.get());
+        synchronizedIdentifiers++;
+      }
+    }
+    try {
+      Files.createDirectories(file.getParent());
+      Path temporaryFile = Files.createTempFile(file.getParent(), FILE_NAME, ".tmp");
+      try (BufferedWriter writer = Files.newBufferedWriter(temporaryFile, StandardCharsets.UTF_8)) {
+        for (Map.Entry<Key, Instant> entry : this.registeredUntil.entrySet()) {
+          writer.write(entry.getKey().identifier() + "\t" + entry.getValue());
+          if (!entry.getKey().filter().isEmpty()) {
+            writer.write("\t" + entry.getKey().filter());
+          }
+          writer.newLine();
+        }
+      }
+      Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    log.debug("Synchronized %s of %s identifiers".formatted(synchronizedIdentifiers,
+        identifiers.size()));
+    return true;
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+  }
+
+  private record Key(String filter, String identifier) implements Comparable<Key> {
+
+    private static final Comparator<Key> ORDER = Comparator.comparing(Key::filter)
+        .thenComparing(Key::identifier);
+
+    @Override
+    public int compareTo(Key other) {
+      return ORDER.compare(this, other);
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package life.qbic.qpostman.download;
+
+import java.io.PrintWriter;
+import life.qbic.qpostman.common.ProgressBar;
+
+/**
+ * Displays the progress of several concurrent file downloads in a single progress bar.
+ * <p>
+ * Concurrent downloads cannot share the terminal line with one progress bar per file. Instead, all
+ * downloads report the bytes they wrote to one progress bar showing the total download progress.
+ */
+public class TotalDownloadProgress {
+
+  private final ProgressBar progressBar;
+  private int numberOfFiles;
+  private long totalSize;
+
+  public TotalDownloadProgress(int numberOfFiles, long totalSize) {
+    this(numberOfFiles, totalSize, new PrintWriter(System.out));
+  }
+
+  public TotalDownloadProgress(int numberOfFiles, long totalSize, PrintWriter out) {
+    this.numberOfFiles = numberOfFiles;
+    this.totalSize = totalSize;
+    progressBar = new ProgressBar("%s files".formatted(numberOfFiles), totalSize, out);
+  }
+
+  /**
+   * Adds files to the total progress, e.g. when files are found while others are downloaded.
+   *
+   * @param numberOfFiles the number of added files
+   * @param size          the total size of the added files
+   */
+  public synchronized void add(int numberOfFiles, long size) {
+    this.numberOfFiles += numberOfFiles;
+    this.totalSize += size;
+    progressBar.resize("%s files".formatted(this.numberOfFiles), totalSize);
+  }
+
+  /**
+   * Creates a listener reporting to the total progress.
+   *
+   * @return a listener for a single file download
+   */
+  public WriteProgressListener listener() {
+    return new WriteProgressListener() {
+      @Override
+      public void update(long bytesWritten) {
+        TotalDownloadProgress.this.update(bytesWritten);
+      }
+
+      @Override
+      public void finish() {
+        // the total progress is finished once all downloads are done
+      }
+    };
+  }
+
+  private synchronized void update(long bytesWritten) {
+    progressBar.updateProgress(bytesWritten);
+  }
+
+  public synchronized void finish() {
+    progressBar.remove();
+  }
+}
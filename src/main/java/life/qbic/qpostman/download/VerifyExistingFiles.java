@@ -0,0 +1,97 @@
+package life.qbic.qpostman.download;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import life.qbic.qpostman.common.structures.DataFile;
+import life.qbic.qpostman.download.VerifyExistingFiles.VerifiedFiles;
+import life.qbic.qpostman.download.WriteFileToDisk.DownloadReport;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Checks which data files exist on disk already before any file is downloaded.
+ * <p>
+ * The files are checked concurrently. Files with a different size on disk are rejected without
+ * reading them; the checksum is only computed for files with the expected size. Only files that
+ * are missing or have a different content need to be downloaded.
+ */
+public class VerifyExistingFiles implements Function<List<DataFile>, VerifiedFiles> {
+
+  private static final Logger log = LogManager.getLogger(VerifyExistingFiles.class);
+
+  private final WriteFileToDisk writeFileToDisk;
+  private final int threads;
+
+  /**
+   * @param writeFileToDisk the function the files are written to disk with
+   * @param threads         the number of files to check at the same time
+   */
+  public VerifyExistingFiles(WriteFileToDisk writeFileToDisk, int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("At least one thread is required.");
+    }
+    this.writeFileToDisk = writeFileToDisk;
+    this.threads = threads;
+  }
+
+  @Override
+  public VerifiedFiles apply(List<DataFile> dataFiles) {
+    ExecutorService executorService = Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable);
+      thread.setName("verify-" + thread.getId());
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      List<Future<Boolean>> checks = dataFiles.stream()
+          .map(dataFile -> executorService.submit(() -> writeFileToDisk.isOnDisk(dataFile)))
+          .toList();
+      List<DownloadReport> presentFiles = new ArrayList<>();
+      List<DataFile> pendingFiles = new ArrayList<>();
+      for (int i = 0; i < dataFiles.size(); i++) {
+        DataFile dataFile = dataFiles.get(i);
+        if (isOnDisk(dataFile, checks.get(i))) {
+          log.info("File " + writeFileToDisk.outputPath(dataFile) + " exists on your machine.");
+          presentFiles.add(new DownloadReport(dataFile.crc32(), dataFile.crc32(),
+              writeFileToDisk.outputPath(dataFile)));
+        } else {
+          pendingFiles.add(dataFile);
+        }
+      }
+      log.debug("%s of %s files exist on your machine".formatted(presentFiles.size(),
+          dataFiles.size()));
+      return new VerifiedFiles(presentFiles, pendingFiles);
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  private static boolean isOnDisk(DataFile dataFile, Future<Boolean> check) {
+    try {
+      return check.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      // the file is downloaded again
+      log.warn("Could not verify existing file %s: %s".formatted(dataFile.filePath(),
+          e.getCause().getMessage()));
+      return false;
+    }
+  }
+
+  /**
+   * The result of the verification.
+   *
+   * @param presentFiles the reports for files that exist on disk with the expected content
+   * @param pendingFiles the files that need to be downloaded, in the order they were provided
+   */
+  public record VerifiedFiles(List<DownloadReport> presentFiles, List<DataFile> pendingFiles) {
+
+  }
+}
@@ -1,46 +1,160 @@
 package life.qbic.qpostman.download;
 
-import ch.ethz.sis.openbis.generic.dssapi.v3.IDataStoreServerApi;
+import static java.util.Objects.nonNull;
+import static java.util.Objects.requireNonNull;
+
+import ch.ethz.sis.openbis.generic.dssapi.v3.dto.datasetfile.download.DataSetFileDownload;
 import ch.ethz.sis.openbis.generic.dssapi.v3.dto.datasetfile.download.DataSetFileDownloadOptions;
 import ch.ethz.sis.openbis.generic.dssapi.v3.dto.datasetfile.download.DataSetFileDownloadReader;
 import java.io.BufferedWriter;
-import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.function.Function;
 import life.qbic.qpostman.common.structures.DataFile;
 import life.qbic.qpostman.download.WriteFileToDisk.DownloadReport;
-import life.qbic.qpostman.openbis.OpenBisSessionProvider;
+import life.qbic.qpostman.openbis.OpenBisSession;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
  * A function writing a DataFile to disk and returning the write report.
+ * <p>
+ * Every file is downloaded from the data store server it was found on.
  */
 public class WriteFileToDisk implements Function<DataFile, DownloadReport> {
 
     private static final String LOG_PATH = System.getProperty("log.path", "logs");
+    private static final Object CHECKSUM_MISMATCH_LOG_LOCK = new Object();
 
-    private final IDataStoreServerApi dataStoreServerApi;
+    private final OpenBisSession session;
+    private final ByteBufferPool bufferPool;
     private final int bufferSize;
     private final Path outputDirectory;
     private final int downloadAttempts;
 
     private final boolean ignoreDirectories;
+    private final Function<DataFile, WriteProgressListener> progressListenerFactory;
+    private final PipelinedTransfer pipelinedTransfer;
+    private final AdaptiveBufferSize adaptiveBufferSize;
+    private final DownloadIndex downloadIndex;
+    private final boolean writeCrc32Files;
+    private final boolean checkExistingFiles;
 
     private static final Logger log = LogManager.getLogger(WriteFileToDisk.class);
-    public WriteFileToDisk(IDataStoreServerApi dataStoreServerApi, int bufferSize, Path outputDirectory,
-        int downloadAttempts, boolean ignoreDirectories) {
-        this.dataStoreServerApi = dataStoreServerApi;
+    public WriteFileToDisk(ByteBufferPool bufferPool, int bufferSize, Path outputDirectory,
+        int downloadAttempts, boolean ignoreDirectories, OpenBisSession session) {
+        this(session, bufferPool, bufferSize, outputDirectory, downloadAttempts, ignoreDirectories,
+            dataFile -> new DownloadProgressListener(dataFile.fileName(), dataFile.fileSize().bytes()),
+            null, null, null, true, true);
+    }
+
+    private WriteFileToDisk(OpenBisSession session, ByteBufferPool bufferPool, int bufferSize,
+        Path outputDirectory,
+        int downloadAttempts, boolean ignoreDirectories,
+        Function<DataFile, WriteProgressListener> progressListenerFactory,
+        PipelinedTransfer pipelinedTransfer, AdaptiveBufferSize adaptiveBufferSize,
+        DownloadIndex downloadIndex, boolean writeCrc32Files, boolean checkExistingFiles) {
+        this.session = requireNonNull(session, "session must not be null");
+        this.bufferPool = bufferPool;
         this.bufferSize = bufferSize;
         this.outputDirectory = outputDirectory;
         this.downloadAttempts = downloadAttempts;
         this.ignoreDirectories = ignoreDirectories;
+        this.progressListenerFactory = progressListenerFactory;
+        this.pipelinedTransfer = pipelinedTransfer;
+        this.adaptiveBufferSize = adaptiveBufferSize;
+        this.downloadIndex = downloadIndex;
+        this.writeCrc32Files = writeCrc32Files;
+        this.checkExistingFiles = checkExistingFiles;
+    }
+
+    /**
+     * Creates a copy of this function reporting the download progress to other listeners.
+     *
+     * @param progressListenerFactory provides a progress listener for every download attempt
+     * @return a function writing files to disk with the provided progress listeners
+     */
+    public WriteFileToDisk withProgressListeners(
+        Function<DataFile, WriteProgressListener> progressListenerFactory) {
+        return new WriteFileToDisk(session, bufferPool, bufferSize, outputDirectory, downloadAttempts,
+            ignoreDirectories, progressListenerFactory, pipelinedTransfer, adaptiveBufferSize,
+            downloadIndex, writeCrc32Files, checkExistingFiles);
+    }
+
+    /**
+     * Creates a copy of this function reading from the network and writing to disk in separate
+     * stages for files larger than the buffer size.
+     *
+     * @param pipelinedTransfer the transfer to use for larger files
+     * @return a function writing larger files to disk with the pipelined transfer
+     */
+    public WriteFileToDisk withPipelinedTransfer(PipelinedTransfer pipelinedTransfer) {
+        return new WriteFileToDisk(session, bufferPool, bufferSize, outputDirectory, downloadAttempts,
+            ignoreDirectories, progressListenerFactory, pipelinedTransfer, adaptiveBufferSize,
+            downloadIndex, writeCrc32Files, checkExistingFiles);
+    }
+
+    /**
+     * Creates a copy of this function choosing the buffer size for every file based on previous
+     * transfers instead of using a fixed buffer size.
+     *
+     * @param adaptiveBufferSize chooses the buffer size for every file
+     * @return a function writing files to disk with adaptive buffer sizes
+     */
+    public WriteFileToDisk withAdaptiveBufferSize(AdaptiveBufferSize adaptiveBufferSize) {
+        return new WriteFileToDisk(session, bufferPool, bufferSize, outputDirectory, downloadAttempts,
+            ignoreDirectories, progressListenerFactory, pipelinedTransfer, adaptiveBufferSize,
+            downloadIndex, writeCrc32Files, checkExistingFiles);
+    }
+
+    /**
+     * Creates a copy of this function recording downloaded files in a download index. Whether a
+     * file exists on disk is decided by the index instead of reading the file.
+     *
+     * @param downloadIndex   the index of the output directory
+     * @param writeCrc32Files whether to write a <code>.crc32</code> file next to every downloaded
+     *                        file in addition to the index
+     * @return a function writing files to disk and recording them in the download index
+     */
+    public WriteFileToDisk withDownloadIndex(DownloadIndex downloadIndex, boolean writeCrc32Files) {
+        return new WriteFileToDisk(session, bufferPool, bufferSize, outputDirectory, downloadAttempts,
+            ignoreDirectories, progressListenerFactory, pipelinedTransfer, adaptiveBufferSize,
+            downloadIndex, writeCrc32Files, checkExistingFiles);
+    }
+
+    /**
+     * Creates a copy of this function that downloads every file without checking whether it exists
+     * on disk already. Use this for files that were verified before.
+     *
+     * @return a function writing files to disk without checking for existing files
+     */
+    public WriteFileToDisk withoutExistingFileCheck() {
+        return new WriteFileToDisk(session, bufferPool, bufferSize, outputDirectory, downloadAttempts,
+            ignoreDirectories, progressListenerFactory, pipelinedTransfer, adaptiveBufferSize,
+            downloadIndex, writeCrc32Files, false);
+    }
+
+    /**
+     * @param dataFile the data file
+     * @return the absolute path the data file is written to
+     */
+    public Path outputPath(DataFile dataFile) {
+        return toOutputPath(dataFile, outputDirectory).toAbsolutePath();
     }
 
     private Path toOutputPath(DataFile dataFile, Path outputDirectory) {
@@ -50,10 +164,19 @@ public class WriteFileToDisk implements Function<DataFile, DownloadReport> {
     }
 
     private AutoClosableDataSetFileDownloadReader toReader(DataFile dataFile) {
+        return toReader(Collections.singletonList(dataFile));
+    }
+
+    /**
+     * Opens one download stream for all data files. All files have to be stored on the same data
+     * store server.
+     */
+    private AutoClosableDataSetFileDownloadReader toReader(List<DataFile> dataFiles) {
         return new AutoClosableDataSetFileDownloadReader(
-            dataStoreServerApi.downloadFiles(OpenBisSessionProvider.get().getToken(),
-                Collections.singletonList(dataFile.fileId()),
-                new DataSetFileDownloadOptions()));
+            session.withToken(token ->
+                dataFiles.get(0).dataStoreServer().api().downloadFiles(token,
+                    dataFiles.stream().map(DataFile::fileId).toList(),
+                    new DataSetFileDownloadOptions())));
     }
 
     private InputStream toInputStream(DataSetFileDownloadReader reader) {
@@ -68,17 +191,13 @@ public class WriteFileToDisk implements Function<DataFile, DownloadReport> {
      */
     @Override
     public DownloadReport apply(DataFile dataFile) {
-        int bufferSize = (dataFile.fileSize().bytes() < this.bufferSize)
-            ? (int) dataFile.fileSize().bytes()
-            : this.bufferSize;
         Path outputPath = toOutputPath(dataFile, outputDirectory);
-        if (WriteUtils.doesExistWithCrc32(outputPath, dataFile.crc32(), bufferSize)) {
-            log.info("File " + outputPath + " exists on your machine.");
+        if (existsOnDisk(dataFile, outputPath)) {
             return new DownloadReport(dataFile.crc32(), dataFile.crc32(), outputPath.toAbsolutePath());
         }
         DownloadReport downloadReport = null;
         for (int attempt = 1; attempt <= downloadAttempts; attempt++) {
-            downloadReport = writeToDisk(dataFile, new DownloadProgressListener(dataFile.fileName(), dataFile.fileSize().bytes()));
+            downloadReport = writeToDisk(dataFile, progressListenerFactory.apply(dataFile));
 
             if (downloadReport.isSuccess()) {
                 return downloadReport;
@@ -87,17 +206,126 @@ public class WriteFileToDisk implements Function<DataFile, DownloadReport> {
                 log.trace(downloadReport);
             }
         }
-        try {
-            Path file = Path.of(LOG_PATH, "checksum-mismatch.log");
-            assert downloadReport != null : "download report is null";
-            Files.writeString(file, downloadReport + "\n", StandardOpenOption.CREATE,
-                StandardOpenOption.APPEND);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        assert downloadReport != null : "download report is null";
+        logChecksumMismatch(downloadReport);
         return downloadReport;
     }
 
+    /**
+     * Downloads several data files with a single request to the data store server. The data files
+     * have to be stored on the same data store server.
+     * <p>
+     * Files that could not be downloaded correctly as part of the batch are downloaded again one by
+     * one.
+     *
+     * @param dataFiles the data files to download
+     * @return the download reports in the order of the provided data files
+     */
+    public List<DownloadReport> applyBatch(List<DataFile> dataFiles) {
+        if (dataFiles.size() == 1) {
+            return List.of(apply(dataFiles.get(0)));
+        }
+        List<DataFile> pendingFiles = new ArrayList<>();
+        Map<DataFile, DownloadReport> downloadReports = new LinkedHashMap<>();
+        for (DataFile dataFile : dataFiles) {
+            Path outputPath = toOutputPath(dataFile, outputDirectory);
+            if (existsOnDisk(dataFile, outputPath)) {
+                downloadReports.put(dataFile,
+                    new DownloadReport(dataFile.crc32(), dataFile.crc32(), outputPath.toAbsolutePath()));
+            } else {
+                pendingFiles.add(dataFile);
+            }
+        }
+        if (!pendingFiles.isEmpty()) {
+            log.debug("Downloading %s files in one batch from %s".formatted(pendingFiles.size(),
+                dataFiles.get(0).dataStoreServer()));
+            downloadReports.putAll(writeBatchToDisk(pendingFiles));
+        }
+        List<DownloadReport> orderedReports = new ArrayList<>(dataFiles.size());
+        for (DataFile dataFile : dataFiles) {
+            DownloadReport downloadReport = downloadReports.get(dataFile);
+            if (Objects.isNull(downloadReport) || downloadReport.isFailure()) {
+                log.debug("Batch download failed for %s. Downloading it separately.".formatted(
+                    dataFile.filePath()));
+                downloadReport = apply(dataFile);
+            }
+            orderedReports.add(downloadReport);
+        }
+        return orderedReports;
+    }
+
+    private Map<DataFile, DownloadReport> writeBatchToDisk(List<DataFile> dataFiles) {
+        Map<String, DataFile> filesByPath = new LinkedHashMap<>();
+        dataFiles.forEach(dataFile -> filesByPath.put(dataFile.fileId().getFilePath(), dataFile));
+        Map<DataFile, DownloadReport> downloadReports = new LinkedHashMap<>();
+        try (AutoClosableDataSetFileDownloadReader reader = toReader(dataFiles)) {
+            DataSetFileDownload download;
+            while ((download = reader.read()) != null) {
+                try (InputStream inputStream = download.getInputStream()) {
+                    DataFile dataFile = filesByPath.get(download.getDataSetFile().getPermId().getFilePath());
+                    if (Objects.isNull(dataFile)) {
+                        // not requested, e.g. a parent directory
+                        inputStream.transferTo(OutputStream.nullOutputStream());
+                        continue;
+                    }
+                    downloadReports.put(dataFile,
+                        writeToDisk(dataFile, inputStream, progressListenerFactory.apply(dataFile)));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // files not downloaded yet are downloaded separately
+            log.error(e.getMessage(), e);
+        }
+        return downloadReports;
+    }
+
+    private boolean existsOnDisk(DataFile dataFile, Path outputPath) {
+        if (!checkExistingFiles) {
+            return false;
+        }
+        if (isOnDisk(dataFile, outputPath)) {
+            log.info("File " + outputPath + " exists on your machine.");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether a data file was written to disk before with the expected content.
+     *
+     * @param dataFile the data file
+     * @return true if the data file exists on disk with the expected content; false otherwise
+     */
+    public boolean isOnDisk(DataFile dataFile) {
+        return isOnDisk(dataFile, toOutputPath(dataFile, outputDirectory));
+    }
+
+    private boolean isOnDisk(DataFile dataFile, Path outputPath) {
+        if (nonNull(downloadIndex) && downloadIndex.isPresent(dataFile, outputPath)) {
+            return true;
+        }
+        if (WriteUtils.doesExistWithCrc32(outputPath, dataFile.fileSize().bytes(), dataFile.crc32())) {
+            if (nonNull(downloadIndex)) {
+                downloadIndex.record(dataFile, outputPath);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static void logChecksumMismatch(DownloadReport downloadReport) {
+        // concurrent downloads must not interleave their lines
+        synchronized (CHECKSUM_MISMATCH_LOG_LOCK) {
+            try {
+                Path file = Path.of(LOG_PATH, "checksum-mismatch.log");
+                Files.writeString(file, downloadReport + "\n", StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
     public record DownloadReport(long expectedCrc32, long actualCrc32, Path outputPath) {
         public boolean isSuccess() {
             return expectedCrc32 == actualCrc32;
@@ -116,6 +344,26 @@ public class WriteFileToDisk implements Function<DataFile, DownloadReport> {
 
     private DownloadReport writeToDisk(DataFile dataFile, WriteProgressListener progressListener) {
         Path outFile = toOutputPath(dataFile, outputDirectory);
+        try (AutoClosableDataSetFileDownloadReader reader = toReader(dataFile); //we need to reader here, so it is closed correctly
+            InputStream inputStream = toInputStream(reader)) {
+            return writeToDisk(dataFile, inputStream, progressListener);
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+            return new DownloadReport(dataFile.crc32(), 0, outFile.toAbsolutePath());
+        }
+    }
+
+    private int transferBufferSize(DataFile dataFile) {
+        if (nonNull(adaptiveBufferSize)) {
+            return adaptiveBufferSize.sizeFor(dataFile);
+        }
+        return (dataFile.fileSize().bytes() < this.bufferSize) ? (int) dataFile.fileSize().bytes()
+            : this.bufferSize;
+    }
+
+    private DownloadReport writeToDisk(DataFile dataFile, InputStream inputStream,
+        WriteProgressListener progressListener) throws IOException {
+        Path outFile = toOutputPath(dataFile, outputDirectory);
 
         Path crc32File = Path.of(outFile.toAbsolutePath() + ".crc32");
         try {
@@ -123,31 +371,45 @@ public class WriteFileToDisk implements Function<DataFile, DownloadReport> {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        try (AutoClosableDataSetFileDownloadReader reader = toReader(dataFile); //we need to reader here, so it is closed correctly
-            InputStream inputStream = toInputStream(reader);
-            FileOutputStream outputStream = new FileOutputStream(outFile.toFile());
-            BufferedWriter crc32FileWriter = new BufferedWriter(
-                new FileWriter(crc32File.toFile()))) {
-            int bufferSize =
-                (dataFile.fileSize().bytes() < this.bufferSize) ? (int) dataFile.fileSize().bytes()
-                    : this.bufferSize;
-            long writtenCrc32 = WriteUtils.write(bufferSize, inputStream, outputStream,
-                progressListener);
-            if (writtenCrc32 != dataFile.crc32()) {
-                return new DownloadReport(dataFile.crc32(), writtenCrc32, outFile.toAbsolutePath());
-            }
-            try {
-                Files.createDirectories(crc32File.getParent());
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+        long writtenCrc32;
+        int bufferSize = transferBufferSize(dataFile);
+        // the input channel must not close the input stream, it belongs to the download reader
+        ReadableByteChannel inputChannel = Channels.newChannel(inputStream);
+        if (nonNull(adaptiveBufferSize)) {
+            inputChannel = adaptiveBufferSize.measure(inputChannel, bufferSize);
+        }
+        try (FileChannel outputChannel = FileChannel.open(outFile, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (nonNull(pipelinedTransfer) && dataFile.fileSize().bytes() > bufferSize) {
+                writtenCrc32 = pipelinedTransfer.write(inputChannel, outputChannel, bufferSize,
+                    progressListener);
+            } else {
+                ByteBuffer buffer = bufferPool.acquire(bufferSize);
+                try {
+                    writtenCrc32 = WriteUtils.write(buffer, inputChannel, outputChannel,
+                        progressListener);
+                } finally {
+                    bufferPool.release(buffer);
+                }
             }
-            crc32FileWriter.write(Long.toHexString(writtenCrc32) + "\t" + dataFile.fileName());
-            crc32FileWriter.flush();
+        }
+        if (nonNull(adaptiveBufferSize)) {
+            // finishes the measurement
+            inputChannel.close();
+        }
+        if (writtenCrc32 != dataFile.crc32()) {
             return new DownloadReport(dataFile.crc32(), writtenCrc32, outFile.toAbsolutePath());
-        } catch (IOException e) {
-            log.error(e.getMessage(), e);
-            return new DownloadReport(dataFile.crc32(), 0, outFile.toAbsolutePath());
         }
+        if (writeCrc32Files) {
+            try (BufferedWriter crc32FileWriter = new BufferedWriter(
+                new FileWriter(crc32File.toFile()))) {
+                crc32FileWriter.write(Long.toHexString(writtenCrc32) + "\t" + dataFile.fileName());
+            }
+        }
+        if (nonNull(downloadIndex)) {
+            downloadIndex.record(dataFile, outFile);
+        }
+        return new DownloadReport(dataFile.crc32(), writtenCrc32, outFile.toAbsolutePath());
     }
     // note: DataSetFileDownloadReader closes the input stream after it finished reading it.
     private static class AutoClosableDataSetFileDownloadReader extends DataSetFileDownloadReader implements AutoCloseable {
@@ -1,12 +1,14 @@
 package life.qbic.qpostman.download;
 
 import java.io.BufferedReader;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Optional;
 import java.util.zip.CRC32;
 import org.apache.logging.log4j.LogManager;
@@ -18,41 +20,78 @@ import org.apache.logging.log4j.Logger;
 public class WriteUtils {
 
   private static final Logger log = LogManager.getLogger(WriteUtils.class);
+  private static final long MAPPED_REGION_SIZE = 64L * 1024 * 1024;
 
-  public static long write(int bufferSize, InputStream inputStream, OutputStream outputStream,
-      WriteProgressListener progressListener)
+  /**
+   * Writes all bytes from the input channel to the output channel and computes their CRC32
+   * checksum. Written data is handed to the operating system without flushing after every chunk.
+   *
+   * @param buffer           the buffer to transfer the data with
+   * @param inputChannel     the channel to read from
+   * @param outputChannel    the channel to write to
+   * @param progressListener is notified about written bytes
+   * @return the CRC32 checksum of the written bytes
+   * @throws IOException if reading or writing fails
+   */
+  public static long write(ByteBuffer buffer, ReadableByteChannel inputChannel,
+      FileChannel outputChannel, WriteProgressListener progressListener)
       throws IOException {
     CRC32 crc32 = new CRC32();
-    byte[] buffer = new byte[bufferSize];
-    int bytesRead;
-    while ((bytesRead = inputStream.read(buffer)) > 0) {
-      crc32.update(buffer, 0, bytesRead);
-      outputStream.write(buffer, 0, bytesRead);
+    int bufferSize = buffer.limit();
+    while (inputChannel.read(buffer) >= 0) {
+      buffer.flip();
+      int bytesRead = buffer.remaining();
+      buffer.mark();
+      crc32.update(buffer);
+      buffer.reset();
+      while (buffer.hasRemaining()) {
+        outputChannel.write(buffer);
+      }
       progressListener.update(bytesRead);
-      outputStream.flush();
+      buffer.clear().limit(bufferSize);
     }
     progressListener.finish();
     return crc32.getValue();
   }
 
-  public static long readCrc32(Path file, int bufferSize) {
+  public static long readCrc32(Path file) {
     if (!file.toFile().exists()) {
       throw new IllegalArgumentException("File " + file.toAbsolutePath() + " was expected but not found.");
     }
-    return readCrc32FromFile(file).orElseGet(() -> calculateCrc32(file, bufferSize));
+    return readCrc32FromFile(file).orElseGet(() -> calculateCrc32(file));
   }
 
-  public static boolean doesExistWithCrc32(Path file, long expectedCrc32, int bufferSize) {
-    return file.toFile().exists() && expectedCrc32 == readCrc32(file, bufferSize);
+  /**
+   * Checks whether a file exists with the expected size and checksum. Files with a different size
+   * are rejected without computing their checksum.
+   *
+   * @param file          the file to check
+   * @param expectedSize  the expected size in bytes
+   * @param expectedCrc32 the expected CRC32 checksum
+   * @return true if the file exists with the expected size and checksum; false otherwise
+   */
+  public static boolean doesExistWithCrc32(Path file, long expectedSize, long expectedCrc32) {
+    try {
+      if (!Files.isRegularFile(file) || Files.size(file) != expectedSize) {
+        return false;
+      }
+    } catch (IOException e) {
+      log.warn("Could not read size of " + file);
+      return false;
+    }
+    return expectedCrc32 == readCrc32(file);
   }
 
-  private static long calculateCrc32(Path file, int bufferSize) {
-    byte[] buffer = new byte[bufferSize];
-    try (InputStream inputStream = new FileInputStream(file.toFile())) {
-      int bytesRead;
+  /**
+   * Computes the checksum of a file by mapping it into memory in large regions.
+   */
+  private static long calculateCrc32(Path file) {
+    try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
       CRC32 crc32 = new CRC32();
-      while ((bytesRead = inputStream.read(buffer)) > 0) {
-        crc32.update(buffer, 0, bytesRead);
+      long size = fileChannel.size();
+      for (long position = 0; position < size; position += MAPPED_REGION_SIZE) {
+        long regionSize = Math.min(MAPPED_REGION_SIZE, size - position);
+        crc32.update(fileChannel.map(MapMode.READ_ONLY, position, regionSize));
       }
       return crc32.getValue();
     } catch (IOException e) {
@@ -60,7 +99,7 @@ public class WriteUtils {
     }
   }
 
-  private static Optional<Long> readCrc32FromFile(Path file) {
+  static Optional<Long> readCrc32FromFile(Path file) {
     Path crc32FileName = Path.of(file.toAbsolutePath() + ".crc32");
 
     if (!crc32FileName.toFile().exists()) {
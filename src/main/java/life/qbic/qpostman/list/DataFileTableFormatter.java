@@ -3,6 +3,7 @@ package life.qbic.qpostman.list;
 import static java.util.Objects.isNull;
 import static java.util.Objects.requireNonNull;
 
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.sample.Sample;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.function.Function;
@@ -17,13 +18,14 @@ public class DataFileTableFormatter {
 
   private final List<Column<String>> columns;
 
-  public DataFileTableFormatter(boolean exactFileSize, boolean withChecksum) {
+  public DataFileTableFormatter(boolean exactFileSize, boolean withChecksum,
+      Function<Sample, Sample> findSourceSample) {
     columns = new ArrayList<>();
 
     columns.add(Column.create("Dataset",
             file -> file.dataSet().sampleCode() + " (" + file.dataSet().dataSetPermId().getPermId()
                 + ")"));
-    columns.add(Column.create("Source", file -> file.dataSet().sourceSample().getCode()));
+    columns.add(Column.create("Source", file -> file.dataSet().sourceSample(findSourceSample).getCode()));
     columns.add(Column.create("Registration", file -> file.dataSet().registrationTime().toString()));
     columns.add(Column.create("Size", file -> exactFileSize
             ? String.valueOf(file.fileSize().bytes())
@@ -3,7 +3,9 @@ package life.qbic.qpostman.list;
 import static java.util.Objects.requireNonNull;
 
 import ch.ethz.sis.openbis.generic.asapi.v3.dto.dataset.id.DataSetPermId;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.sample.Sample;
 import java.util.List;
+import java.util.function.Function;
 import life.qbic.qpostman.common.FileSizeFormatter;
 import life.qbic.qpostman.common.structures.DataFile;
 import life.qbic.qpostman.common.structures.DataSetWrapper;
@@ -14,6 +16,12 @@ import life.qbic.qpostman.common.structures.FileSize;
  */
 public class LegacyOutputFormatter {
 
+  private final Function<Sample, Sample> findSourceSample;
+
+  public LegacyOutputFormatter(Function<Sample, Sample> findSourceSample) {
+    this.findSourceSample = requireNonNull(findSourceSample, "findSourceSample must not be null");
+  }
+
   public String format(DataSetSummary dataSetSummary, boolean exactFileSize, boolean withChecksum) {
     String summaryOutput = """
         # Dataset         %s
@@ -22,7 +30,7 @@ public class LegacyOutputFormatter {
         # Size            %s
         """.formatted(
         dataSetSummary.datasetName(),
-        dataSetSummary.sourceSampleCode(),
+        dataSetSummary.dataSet().sourceSample(findSourceSample).getCode(),
         dataSetSummary.dataSet().registrationTime(),
         exactFileSize ? dataSetSummary.totalSize().bytes() : FileSizeFormatter.format(dataSetSummary.totalSize()
         ));
@@ -59,10 +67,6 @@ public class LegacyOutputFormatter {
       return datafiles.get(0).dataSet();
     }
 
-    public String sourceSampleCode() {
-      return dataSet().sourceSample().getCode();
-    }
-
     public String datasetName() {
       DataSetWrapper dataSet = dataSet();
       return "%s (%s)".formatted(dataSet.sampleCode(), dataSet.dataSetPermId().getPermId());
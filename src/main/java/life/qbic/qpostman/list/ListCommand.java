@@ -2,29 +2,36 @@ package life.qbic.qpostman.list;
 
 import static picocli.CommandLine.Command;
 import static picocli.CommandLine.Mixin;
+import static picocli.CommandLine.Spec;
 
-import ch.ethz.sis.openbis.generic.asapi.v3.IApplicationServerApi;
-import ch.ethz.sis.openbis.generic.dssapi.v3.IDataStoreServerApi;
+import java.time.Duration;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Optional;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import life.qbic.qpostman.common.MetadataCache;
 import life.qbic.qpostman.common.functions.FileFilter;
 import life.qbic.qpostman.common.functions.FindSourceSample;
 import life.qbic.qpostman.common.functions.SearchDataSets;
+import life.qbic.qpostman.common.functions.SearchDataSets.FetchPlan;
 import life.qbic.qpostman.common.functions.SearchFiles;
 import life.qbic.qpostman.common.functions.SortFiles;
 import life.qbic.qpostman.common.options.AuthenticationOptions;
+import life.qbic.qpostman.common.options.CacheOptions;
 import life.qbic.qpostman.common.options.FilterOptions;
 import life.qbic.qpostman.common.options.SampleIdentifierOptions;
 import life.qbic.qpostman.common.options.ServerOptions;
 import life.qbic.qpostman.common.structures.DataFile;
 import life.qbic.qpostman.common.structures.DataSetWrapper;
 import life.qbic.qpostman.list.LegacyOutputFormatter.DataSetSummary;
-import life.qbic.qpostman.openbis.OpenBisSessionProvider;
-import life.qbic.qpostman.openbis.ServerFactory;
+import life.qbic.qpostman.openbis.ClientRegistry;
+import life.qbic.qpostman.openbis.HttpTransport;
+import life.qbic.qpostman.openbis.TokenCache;
+import picocli.CommandLine.Model.CommandSpec;
 
 @Command(name = "list",
         description = "lists all the datasets found for the given identifiers")
@@ -40,14 +47,45 @@ public class ListCommand implements Runnable {
     ServerOptions serverOptions;
     @Mixin
     ListOptions listOptions;
+    @Mixin
+    CacheOptions cacheOptions;
+    @Spec
+    CommandSpec spec;
+
+    private final Optional<ClientRegistry> sharedClientRegistry;
+
+    public ListCommand() {
+        this.sharedClientRegistry = Optional.empty();
+    }
+
+    /**
+     * Lists with clients shared by several runs instead of creating and closing its own.
+     *
+     * @param sharedClientRegistry the clients to use
+     */
+    public ListCommand(ClientRegistry sharedClientRegistry) {
+        this.sharedClientRegistry = Optional.of(sharedClientRegistry);
+    }
 
     @Override
     public void run() {
             Functions functions = setupFunctions();
+            try {
+                run(functions);
+            } finally {
+                if (sharedClientRegistry.isEmpty()) {
+                    functions.clientRegistry().close();
+                }
+            }
+    }
 
-            Collection<DataFile> dataSetFiles = functions.searchDataSets()
+    private void run(Functions functions) {
+            Supplier<Collection<DataFile>> search = () -> functions.searchDataSets()
                 .andThen(functions.searchFiles())
                 .apply(sampleIdentifierOptions.getIds());
+            Collection<DataFile> dataSetFiles = functions.metadataCache().isPresent()
+                ? cachedSearch(functions.metadataCache().get(), search)
+                : search.get();
 
             List<DataFile> processedFiles = dataSetFiles.stream()
                 .filter(functions.fileFilter())
@@ -55,53 +93,75 @@ public class ListCommand implements Runnable {
                 .toList();
 
             Consumer<List<DataFile>> output = switch (listOptions.outputFormat) {
-                case LEGACY -> this::listAsLegacy;
-                case TSV -> this::listAsTsv;
+                case LEGACY -> files -> listAsLegacy(files, functions.findSourceSample());
+                case TSV -> files -> listAsTsv(files, functions.findSourceSample());
             };
             output.accept(processedFiles);
     }
 
-    private void listAsTsv(List<DataFile> processedFiles) {
+    private List<DataFile> cachedSearch(MetadataCache metadataCache,
+        Supplier<Collection<DataFile>> search) {
+        String key = MetadataCache.key(serverOptions.as_url, serverOptions.dss_urls,
+            authenticationOptions.user, sampleIdentifierOptions.getIds());
+        return cacheOptions.refreshCache
+            ? metadataCache.replace(key, search)
+            : metadataCache.computeIfAbsent(key, search);
+    }
+
+    private void listAsTsv(List<DataFile> processedFiles, FindSourceSample findSourceSample) {
         boolean withHeader = !listOptions.withoutHeader;
-        DataFileTableFormatter dataFileTableFormatter = new DataFileTableFormatter(listOptions.exactFilesize, listOptions.withChecksum);
+        DataFileTableFormatter dataFileTableFormatter = new DataFileTableFormatter(listOptions.exactFilesize, listOptions.withChecksum, findSourceSample);
         String tsvContent = dataFileTableFormatter
             .formatAsTable(processedFiles, "\t", withHeader);
-        System.out.println(tsvContent);
+        spec.commandLine().getOut().println(tsvContent);
+        spec.commandLine().getOut().flush();
     }
 
-    private void listAsLegacy(List<DataFile> processedFiles) {
-        LegacyOutputFormatter legacyOutputFormatter = new LegacyOutputFormatter();
+    private void listAsLegacy(List<DataFile> processedFiles, FindSourceSample findSourceSample) {
+        LegacyOutputFormatter legacyOutputFormatter = new LegacyOutputFormatter(findSourceSample);
         Map<DataSetWrapper, List<DataFile>> groupedFiles = processedFiles.stream()
             .collect(Collectors.groupingBy(DataFile::dataSet));
         for (Entry<DataSetWrapper, List<DataFile>> dataSetWrapperListEntry : groupedFiles.entrySet()) {
             String output = legacyOutputFormatter.format(
                 new DataSetSummary(dataSetWrapperListEntry.getValue()),
                 listOptions.exactFilesize, listOptions.withChecksum);
-            System.out.println(output);
+            spec.commandLine().getOut().println(output);
         }
+        spec.commandLine().getOut().flush();
     }
 
     private Functions setupFunctions() {
-        IApplicationServerApi applicationServerApi = ServerFactory.applicationServer(
-            serverOptions.as_url, serverOptions.timeoutInMillis);
-        OpenBisSessionProvider.init(applicationServerApi, authenticationOptions.user,
-            new String(authenticationOptions.getPassword()));
-        Collection<IDataStoreServerApi> dataStoreServerApis = ServerFactory.dataStoreServers(
-            serverOptions.dss_urls, serverOptions.timeoutInMillis);
-        SearchDataSets searchDataSets = new SearchDataSets(applicationServerApi);
+        ClientRegistry clientRegistry = sharedClientRegistry.orElseGet(() -> ClientRegistry.create(
+            serverOptions.as_url, serverOptions.dss_urls, HttpTransport.create(serverOptions),
+            authenticationOptions.user, new String(authenticationOptions.getPassword()),
+            Duration.ofSeconds(serverOptions.sessionCheckIntervalInSeconds),
+            TokenCache.open(authenticationOptions, serverOptions.as_url)));
+        SearchDataSets searchDataSets = new SearchDataSets(clientRegistry.applicationServer(),
+            clientRegistry.session())
+            .withChunkSize(serverOptions.sampleChunkSize)
+            .withThreads(serverOptions.sampleSearchThreads)
+            .withPageSize(serverOptions.samplePageSize)
+            .withFetchPlan(serverOptions.fetchPlanOr(FetchPlan.RECURSIVE));
         FileFilter myAwesomeFileFilter = FileFilter.create()
             .withSuffixes(filterOptions.suffixes)
             .withPattern(filterOptions.pattern);
-        SearchFiles searchFiles = new SearchFiles(dataStoreServerApis, number -> {});
+        SearchFiles searchFiles = new SearchFiles(clientRegistry.dataStoreServers(),
+            clientRegistry.session(), number -> {})
+            .withChunkSize(serverOptions.listingChunkSize)
+            .withThreadsPerServer(serverOptions.listingThreadsPerServer)
+            .withDataStoreRouting(clientRegistry.dataStoreRouting());
         FindSourceSample findSourceSample = new FindSourceSample(serverOptions.sourceSampleType);
 
         SortFiles sortFiles = new SortFiles();
 
-        DataSetWrapper.setFindSourceFunction(findSourceSample);
-      return new Functions(searchDataSets, myAwesomeFileFilter, searchFiles, sortFiles);
+        Optional<MetadataCache> metadataCache = MetadataCache.open(cacheOptions,
+            clientRegistry.dataStoreServers());
+
+      return new Functions(clientRegistry, searchDataSets, myAwesomeFileFilter, searchFiles, sortFiles, findSourceSample, metadataCache);
     }
 
-    private record Functions(SearchDataSets searchDataSets, FileFilter fileFilter, SearchFiles searchFiles, SortFiles sortFiles) {
+    private record Functions(ClientRegistry clientRegistry, SearchDataSets searchDataSets, FileFilter fileFilter, SearchFiles searchFiles, SortFiles sortFiles, FindSourceSample findSourceSample,
+                             Optional<MetadataCache> metadataCache) {
 
     }
 }
@@ -0,0 +1,202 @@
+package life.qbic.qpostman.openbis;
+
+import static java.util.Objects.requireNonNull;
+
+import ch.ethz.sis.openbis.generic.asapi.v3.IApplicationServerApi;
+import ch.ethz.sis.openbis.generic.dssapi.v3.IDataStoreServerApi;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Holds the clients of one run: the application server, the session on it and the data store
+ * servers. It also holds the routing of data stores to data store servers, so routes learned by
+ * one listing are used by all later listings.
+ * <p>
+ * Every client is created once and shared by all threads of the run. The service stubs are
+ * thread-safe. Every call through them is counted per server, so the number of requests in flight
+ * on a server can be observed while the run is going on.
+ * <p>
+ * Closing the registry logs the request statistics and closes the connections to the servers.
+ */
+public class ClientRegistry implements AutoCloseable {
+
+    private static final Logger log = LogManager.getLogger(ClientRegistry.class);
+
+    private final String applicationServerUrl;
+    private final String username;
+    private final HttpTransport httpTransport;
+    private final IApplicationServerApi applicationServer;
+    private final OpenBisSession session;
+    private final List<DataStoreServer> dataStoreServers;
+    private final DataStoreRouting dataStoreRouting;
+    private final Map<String, RequestCounter> requestCounters;
+
+    private ClientRegistry(String applicationServerUrl, String username, HttpTransport httpTransport,
+        IApplicationServerApi applicationServer,
+        OpenBisSession session, List<DataStoreServer> dataStoreServers,
+        Map<String, RequestCounter> requestCounters) {
+        this.applicationServerUrl = applicationServerUrl;
+        this.username = username;
+        this.httpTransport = httpTransport;
+        this.applicationServer = applicationServer;
+        this.session = session;
+        this.dataStoreServers = dataStoreServers;
+        this.dataStoreRouting = new DataStoreRouting(dataStoreServers);
+        this.requestCounters = requestCounters;
+    }
+
+    /**
+     * Creates the clients of a run and logs in.
+     *
+     * @param applicationServerUrl  the url of the application server
+     * @param dataStoreServerUrls   the urls of the data store servers; empty urls are ignored
+     * @param httpTransport         the transport to create the service stubs with
+     * @param username              the user to log in
+     * @param password              the password of the user
+     * @param sessionCheckInterval  how long a session token is used without checking it with the
+     *                              server
+     * @param tokenCache            remembers the session token across invocations
+     * @return the client registry of the run
+     */
+    public static ClientRegistry create(String applicationServerUrl,
+        List<String> dataStoreServerUrls, HttpTransport httpTransport, String username,
+        String password, Duration sessionCheckInterval, Optional<TokenCache> tokenCache) {
+        requireNonNull(applicationServerUrl, "applicationServerUrl must not be null");
+        Map<String, RequestCounter> requestCounters = new LinkedHashMap<>();
+
+        RequestCounter applicationServerCounter = new RequestCounter();
+        requestCounters.put(applicationServerUrl, applicationServerCounter);
+        IApplicationServerApi applicationServer = counted(IApplicationServerApi.class,
+            ServerFactory.applicationServer(applicationServerUrl, httpTransport),
+            applicationServerCounter);
+
+        List<DataStoreServer> dataStoreServers = ServerFactory.dataStoreServers(
+                dataStoreServerUrls, httpTransport).stream()
+            .map(server -> {
+                RequestCounter counter = requestCounters.computeIfAbsent(server.url(),
+                    url -> new RequestCounter());
+                return new DataStoreServer(server.url(),
+                    counted(IDataStoreServerApi.class, server.api(), counter));
+            })
+            .toList();
+
+        OpenBisSession session;
+        try {
+            session = new OpenBisSession(applicationServer, username, password,
+                sessionCheckInterval, tokenCache);
+        } catch (RuntimeException e) {
+            httpTransport.close();
+            throw e;
+        }
+        return new ClientRegistry(applicationServerUrl, username, httpTransport, applicationServer,
+            session, dataStoreServers, Collections.unmodifiableMap(requestCounters));
+    }
+
+    public String applicationServerUrl() {
+        return applicationServerUrl;
+    }
+
+    /**
+     * @return the user the session belongs to
+     */
+    public String username() {
+        return username;
+    }
+
+    public IApplicationServerApi applicationServer() {
+        return applicationServer;
+    }
+
+    public OpenBisSession session() {
+        return session;
+    }
+
+    public Collection<DataStoreServer> dataStoreServers() {
+        return dataStoreServers;
+    }
+
+    /**
+     * @return the routing of data stores to the data store servers of this registry
+     */
+    public DataStoreRouting dataStoreRouting() {
+        return dataStoreRouting;
+    }
+
+    /**
+     * @param serverUrl the url of an application or data store server
+     * @return the number of requests to the server that did not complete yet
+     */
+    public int inFlightRequests(String serverUrl) {
+        RequestCounter counter = requestCounters.get(serverUrl);
+        return counter == null ? 0 : counter.inFlight.get();
+    }
+
+    /**
+     * @return the number of requests in flight per server url
+     */
+    public Map<String, Integer> inFlightRequests() {
+        Map<String, Integer> inFlightRequests = new LinkedHashMap<>();
+        requestCounters.forEach((url, counter) -> inFlightRequests.put(url, counter.inFlight.get()));
+        return inFlightRequests;
+    }
+
+    /**
+     * Logs the number of requests made to every server and how often connections were reused.
+     */
+    public void logRequestCounts() {
+        requestCounters.forEach((url, counter) -> log.debug(
+            "%s requests to %s".formatted(counter.total.sum(), url)));
+        httpTransport.logStatistics();
+    }
+
+    @Override
+    public void close() {
+        logRequestCounts();
+        httpTransport.close();
+    }
+
+    private static <T> T counted(Class<T> serviceInterface, T service, RequestCounter counter) {
+        InvocationHandler handler = (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                return objectMethod(proxy, method, args, service);
+            }
+            counter.inFlight.incrementAndGet();
+            counter.total.increment();
+            try {
+                return method.invoke(service, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            } finally {
+                counter.inFlight.decrementAndGet();
+            }
+        };
+        return serviceInterface.cast(Proxy.newProxyInstance(serviceInterface.getClassLoader(),
+            new Class<?>[]{serviceInterface}, handler));
+    }
+
+    private static Object objectMethod(Object proxy, Method method, Object[] args, Object service) {
+        return switch (method.getName()) {
+            case "equals" -> proxy == args[0];
+            case "hashCode" -> System.identityHashCode(proxy);
+            default -> "counted " + service;
+        };
+    }
+
+    private static final class RequestCounter {
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final LongAdder total = new LongAdder();
+    }
+}
@@ -0,0 +1,115 @@
+package life.qbic.qpostman.openbis;
+
+import static java.util.Objects.isNull;
+
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.datastore.DataStore;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Finds the configured data store server that stores the data of an openBIS data store.
+ * <p>
+ * A data store is assigned to the server whose url matches the download or remote url of the data
+ * store. If no url matches exactly, the data store is assigned to the only server on the same host.
+ * Data stores that cannot be assigned by their url can be assigned once a server was found to
+ * store their data.
+ */
+public class DataStoreRouting {
+
+  private static final Logger log = LogManager.getLogger(DataStoreRouting.class);
+
+  private final Collection<DataStoreServer> dataStoreServers;
+  private final Map<String, DataStoreServer> serversByDataStoreCode = new ConcurrentHashMap<>();
+
+  public DataStoreRouting(Collection<DataStoreServer> dataStoreServers) {
+    this.dataStoreServers = dataStoreServers;
+  }
+
+  /**
+   * @param dataStore the data store of a dataset
+   * @return the server storing the data of the data store; empty if it is not known
+   */
+  public Optional<DataStoreServer> serverOf(DataStore dataStore) {
+    DataStoreServer dataStoreServer = serversByDataStoreCode.get(dataStore.getCode());
+    if (isNull(dataStoreServer)) {
+      dataStoreServer = matchByUrl(dataStore).orElse(null);
+      if (isNull(dataStoreServer)) {
+        return Optional.empty();
+      }
+      assign(dataStore, dataStoreServer);
+    }
+    return Optional.of(dataStoreServer);
+  }
+
+  /**
+   * Assigns a data store to the server that was found to store its data.
+   *
+   * @param dataStore       the data store
+   * @param dataStoreServer the server storing the data of the data store
+   */
+  public void assign(DataStore dataStore, DataStoreServer dataStoreServer) {
+    if (isNull(serversByDataStoreCode.putIfAbsent(dataStore.getCode(), dataStoreServer))) {
+      log.debug("Data store %s is served by %s".formatted(dataStore.getCode(), dataStoreServer));
+    }
+  }
+
+  private Optional<DataStoreServer> matchByUrl(DataStore dataStore) {
+    List<URI> dataStoreUrls = Stream.of(dataStore.getDownloadUrl(),
+            dataStore.getRemoteUrl())
+        .filter(Objects::nonNull)
+        .map(DataStoreRouting::normalize)
+        .flatMap(Optional::stream)
+        .toList();
+    for (DataStoreServer dataStoreServer : dataStoreServers) {
+      Optional<URI> serverUrl = normalize(dataStoreServer.url());
+      if (serverUrl.isPresent() && dataStoreUrls.contains(serverUrl.get())) {
+        return Optional.of(dataStoreServer);
+      }
+    }
+    List<DataStoreServer> serversOnSameHost = dataStoreServers.stream()
+        .filter(dataStoreServer -> normalize(dataStoreServer.url())
+            .map(serverUrl -> dataStoreUrls.stream().anyMatch(url -> sameHost(url, serverUrl)))
+            .orElse(false))
+        .toList();
+    if (serversOnSameHost.size() == 1) {
+      return Optional.of(serversOnSameHost.get(0));
+    }
+    return Optional.empty();
+  }
+
+  private static boolean sameHost(URI first, URI second) {
+    return Objects.equals(first.getHost(), second.getHost())
+        && first.getPort() == second.getPort();
+  }
+
+  /**
+   * Normalizes a url to scheme, host, port and path without a trailing slash. Default ports are
+   * made explicit.
+   */
+  private static Optional<URI> normalize(String url) {
+    try {
+      URI uri = new URI(url.trim());
+      if (isNull(uri.getScheme()) || isNull(uri.getHost())) {
+        return Optional.empty();
+      }
+      String scheme = uri.getScheme().toLowerCase();
+      int port = uri.getPort();
+      if (port < 0) {
+        port = scheme.equals("https") ? 443 : 80;
+      }
+      String path = isNull(uri.getPath()) ? "" : uri.getPath().replaceAll("/+$", "");
+      return Optional.of(new URI(scheme, null, uri.getHost().toLowerCase(), port, path, null, null));
+    } catch (URISyntaxException e) {
+      return Optional.empty();
+    }
+  }
+}
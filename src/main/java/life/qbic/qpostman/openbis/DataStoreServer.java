@@ -0,0 +1,24 @@
+package life.qbic.qpostman.openbis;
+
+import static java.util.Objects.requireNonNull;
+
+import ch.ethz.sis.openbis.generic.dssapi.v3.IDataStoreServerApi;
+
+/**
+ * A data store server together with the url it is reachable at.
+ *
+ * @param url the base url of the data store server
+ * @param api the service stub to talk to the data store server
+ */
+public record DataStoreServer(String url, IDataStoreServerApi api) {
+
+  public DataStoreServer {
+    requireNonNull(url, "url must not be null");
+    requireNonNull(api, "api must not be null");
+  }
+
+  @Override
+  public String toString() {
+    return url;
+  }
+}
@@ -0,0 +1,216 @@
+package life.qbic.qpostman.openbis;
+
+import ch.systemsx.cisd.common.spring.HttpInvokerUtils;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import life.qbic.qpostman.common.options.ServerOptions;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.remoting.httpinvoker.HttpComponentsHttpInvokerRequestExecutor;
+import org.springframework.remoting.httpinvoker.HttpInvokerProxyFactoryBean;
+
+/**
+ * Creates the service stubs talking to openBIS servers.
+ * <p>
+ * With a connection pool, all stubs send their requests over one HTTP client that keeps
+ * connections alive and reuses them for later requests to the same server. This avoids a new
+ * connection and TLS handshake for every request. Calls sending or receiving streams, like file
+ * downloads, are not pooled; they use the stream supporting stubs of openBIS.
+ * <p>
+ * Without a connection pool, the stubs are created with the openBIS defaults.
+ */
+public class HttpTransport implements AutoCloseable {
+
+    private static final Logger log = LogManager.getLogger(HttpTransport.class);
+    private static final int VALIDATE_AFTER_INACTIVITY_MILLIS = 2_000;
+    private static final long MAX_IDLE_SECONDS = 60;
+
+    private final long connectTimeoutInMillis;
+    private final long readTimeoutInMillis;
+    private final boolean gzip;
+    private final CloseableHttpClient httpClient;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder openedConnections = new LongAdder();
+
+    private HttpTransport(int connectionsPerServer, long connectTimeoutInMillis,
+        long readTimeoutInMillis, boolean gzip, boolean pooled) {
+        this.connectTimeoutInMillis = connectTimeoutInMillis;
+        this.readTimeoutInMillis = readTimeoutInMillis;
+        this.gzip = gzip;
+        this.httpClient = pooled ? pooledHttpClient(connectionsPerServer) : null;
+    }
+
+    /**
+     * @param connectionsPerServer   the maximal number of open connections to one server
+     * @param connectTimeoutInMillis the time to wait for a connection to be established
+     * @param readTimeoutInMillis    the time to wait for a server response
+     * @param gzip                   whether servers may compress responses
+     * @return a transport reusing connections to the servers
+     */
+    public static HttpTransport pooled(int connectionsPerServer, long connectTimeoutInMillis,
+        long readTimeoutInMillis, boolean gzip) {
+        if (connectionsPerServer < 1) {
+            throw new IllegalArgumentException(
+                "At least one connection per server is required, was " + connectionsPerServer);
+        }
+        return new HttpTransport(connectionsPerServer, connectTimeoutInMillis, readTimeoutInMillis,
+            gzip, true);
+    }
+
+    /**
+     * @param timeoutInMillis the server timeout
+     * @return a transport creating stubs with the openBIS defaults
+     */
+    public static HttpTransport unpooled(long timeoutInMillis) {
+        return new HttpTransport(0, timeoutInMillis, timeoutInMillis, false, false);
+    }
+
+    /**
+     * @param serverOptions the server options
+     * @return the transport configured by the options
+     */
+    public static HttpTransport create(ServerOptions serverOptions) {
+        return serverOptions.connectionPool
+            ? pooled(serverOptions.connectionsPerServer, serverOptions.connectTimeoutInMillis,
+            serverOptions.timeoutInMillis, serverOptions.gzip)
+            : unpooled(serverOptions.timeoutInMillis);
+    }
+
+    /**
+     * @param serviceInterface the interface of the service
+     * @param serviceUrl       the url of the service
+     * @param <T>              the type of the service
+     * @return a stub calling the service
+     */
+    public <T> T serviceStub(Class<T> serviceInterface, String serviceUrl) {
+        if (httpClient == null) {
+            return HttpInvokerUtils.createServiceStub(serviceInterface, serviceUrl,
+                readTimeoutInMillis);
+        }
+        HttpComponentsHttpInvokerRequestExecutor requestExecutor =
+            new HttpComponentsHttpInvokerRequestExecutor(httpClient);
+        requestExecutor.setConnectTimeout((int) connectTimeoutInMillis);
+        requestExecutor.setReadTimeout((int) readTimeoutInMillis);
+        requestExecutor.setAcceptGzipEncoding(gzip);
+        HttpInvokerProxyFactoryBean proxyFactory = new HttpInvokerProxyFactoryBean();
+        proxyFactory.setBeanClassLoader(serviceInterface.getClassLoader());
+        proxyFactory.setServiceInterface(serviceInterface);
+        proxyFactory.setServiceUrl(serviceUrl);
+        proxyFactory.setHttpInvokerRequestExecutor(requestExecutor);
+        proxyFactory.afterPropertiesSet();
+        return serviceInterface.cast(proxyFactory.getObject());
+    }
+
+    /**
+     * Creates a stub for a service sending or receiving streams. Calls with streams go through the
+     * stream supporting stub of openBIS, all other calls through {@link #serviceStub(Class,
+     * String)}.
+     *
+     * @param serviceInterface the interface of the service
+     * @param serviceUrl       the url of the service
+     * @param <T>              the type of the service
+     * @return a stub calling the service
+     */
+    public <T> T streamSupportingServiceStub(Class<T> serviceInterface, String serviceUrl) {
+        T streamingStub = HttpInvokerUtils.createStreamSupportingServiceStub(serviceInterface,
+            serviceUrl, readTimeoutInMillis);
+        if (httpClient == null) {
+            return streamingStub;
+        }
+        T pooledStub = serviceStub(serviceInterface, serviceUrl);
+        InvocationHandler handler = (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                return switch (method.getName()) {
+                    case "equals" -> proxy == args[0];
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    default -> "pooled " + serviceUrl;
+                };
+            }
+            try {
+                return method.invoke(usesStreams(method) ? streamingStub : pooledStub, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        };
+        return serviceInterface.cast(Proxy.newProxyInstance(serviceInterface.getClassLoader(),
+            new Class<?>[]{serviceInterface}, handler));
+    }
+
+    private static boolean usesStreams(Method method) {
+        return InputStream.class.isAssignableFrom(method.getReturnType())
+            || Arrays.stream(method.getParameterTypes()).anyMatch(InputStream.class::isAssignableFrom);
+    }
+
+    private CloseableHttpClient pooledHttpClient(int connectionsPerServer) {
+        HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> connectionFactory =
+            (HttpRoute route, ConnectionConfig config) -> {
+                openedConnections.increment();
+                return ManagedHttpClientConnectionFactory.INSTANCE.create(route, config);
+            };
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+            RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", SSLConnectionSocketFactory.getSocketFactory())
+                .build(),
+            connectionFactory);
+        connectionManager.setDefaultMaxPerRoute(connectionsPerServer);
+        connectionManager.setMaxTotal(Integer.MAX_VALUE);
+        connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+        HttpRequestInterceptor requestCounter = (request, context) -> requests.increment();
+        HttpClientBuilder httpClientBuilder = HttpClientBuilder.create()
+            .setConnectionManager(connectionManager)
+            .evictIdleConnections(MAX_IDLE_SECONDS, TimeUnit.SECONDS)
+            .addInterceptorLast(requestCounter)
+            .useSystemProperties();
+        if (!gzip) {
+            httpClientBuilder.disableContentCompression();
+        }
+        return httpClientBuilder.build();
+    }
+
+    /**
+     * Logs how many requests were sent over how many connections.
+     */
+    public void logStatistics() {
+        if (httpClient == null) {
+            return;
+        }
+        long numberOfRequests = requests.sum();
+        long numberOfConnections = openedConnections.sum();
+        log.debug("Sent %s pooled requests over %s connections, %s requests reused a connection"
+            .formatted(numberOfRequests, numberOfConnections,
+                Math.max(numberOfRequests - numberOfConnections, 0)));
+    }
+
+    @Override
+    public void close() {
+        if (httpClient == null) {
+            return;
+        }
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            log.debug("Could not close the http client", e);
+        }
+    }
+}
@@ -1,48 +1,191 @@
 package life.qbic.qpostman.openbis;
 
 import ch.ethz.sis.openbis.generic.asapi.v3.IApplicationServerApi;
+import java.time.Duration;
+import java.util.Locale;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Function;
 import life.qbic.qpostman.common.AuthenticationException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
+/**
+ * An openBIS session of a user.
+ * <p>
+ * A token is assumed to be valid for the validity window after it was obtained or last checked.
+ * Within the window, the token is provided without asking the application server. Calls made with
+ * {@link #withToken(Function)} that fail because the session ended invalidate the token, log in
+ * again and are retried once. If several threads find the token invalid at the same time, only one
+ * of them logs in.
+ * <p>
+ * With a token cache, a remembered token of an earlier invocation is used while the application
+ * server reports it as active. Otherwise, the user logs in with the password and the new token is
+ * remembered.
+ */
 public class OpenBisSession {
+    private static final Logger log = LogManager.getLogger(OpenBisSession.class);
+    private static final Duration DEFAULT_VALIDITY = Duration.ofMinutes(10);
+
     private final String username;
     private final String password;
     private final IApplicationServerApi applicationServerApi;
-    private String token;
+    private final long validityNanos;
+    private final Optional<TokenCache> tokenCache;
+    private volatile String token;
+    private volatile long validUntilNanos;
 
     public OpenBisSession(IApplicationServerApi applicationServerApi, String username, String password) {
+        this(applicationServerApi, username, password, DEFAULT_VALIDITY);
+    }
+
+    public OpenBisSession(IApplicationServerApi applicationServerApi, String username, String password,
+        Duration validity) {
+        this(applicationServerApi, username, password, validity, Optional.empty());
+    }
+
+    /**
+     * @param tokenCache remembers the token across invocations
+     */
+    public OpenBisSession(IApplicationServerApi applicationServerApi, String username, String password,
+        Duration validity, Optional<TokenCache> tokenCache) {
         this.applicationServerApi = applicationServerApi;
         this.username = username;
         this.password = password;
-        token = login();
+        this.validityNanos = validity.toNanos();
+        this.tokenCache = tokenCache;
+        if (!reuseCachedToken()) {
+            login();
+        }
     }
 
-    public void logout() {
-        applicationServerApi.logout(token);
+    public synchronized void logout() {
+        if (Objects.nonNull(token)) {
+            applicationServerApi.logout(token);
+        }
         token = null;
+        tokenCache.ifPresent(TokenCache::clear);
     }
 
     public boolean isLoggedIn() {
-        return Objects.nonNull(token) && !token.isBlank() && applicationServerApi.isSessionActive(token);
+        String currentToken = token;
+        return Objects.nonNull(currentToken) && !currentToken.isBlank()
+            && applicationServerApi.isSessionActive(currentToken);
     }
 
+    /**
+     * @return a session token; checked with the application server only if the validity window
+     * passed
+     */
     public String getToken() {
-        return isLoggedIn() ? token : login();
+        String currentToken = token;
+        if (Objects.nonNull(currentToken) && System.nanoTime() - validUntilNanos < 0) {
+            return currentToken;
+        }
+        return revalidate(currentToken);
+    }
+
+    /**
+     * Calls the server with a session token. If the call fails because the session is not valid,
+     * the token is replaced and the call is retried once.
+     *
+     * @param call the call to the server
+     * @param <T>  the type of the result
+     * @return the result of the call
+     */
+    public <T> T withToken(Function<String, T> call) {
+        String usedToken = getToken();
+        try {
+            return call.apply(usedToken);
+        } catch (RuntimeException e) {
+            if (!isSessionFailure(e)) {
+                throw e;
+            }
+            log.debug("Session expired, logging in again", e);
+            invalidate(usedToken);
+            return call.apply(getToken());
+        }
     }
 
-    private String login() throws AuthenticationException {
-        if (isLoggedIn()) {
-            logout();
+    /**
+     * Marks a token as invalid. The next request for a token logs in again. Has no effect if the
+     * token was replaced already.
+     *
+     * @param invalidToken the token that was found to be invalid
+     */
+    public synchronized void invalidate(String invalidToken) {
+        if (Objects.equals(token, invalidToken)) {
+            token = null;
+        }
+    }
+
+    private synchronized String revalidate(String checkedToken) {
+        if (!Objects.equals(token, checkedToken)) {
+            // another thread replaced the token in the meantime
+            return getToken();
+        }
+        if (Objects.nonNull(token) && applicationServerApi.isSessionActive(token)) {
+            validUntilNanos = System.nanoTime() + validityNanos;
+            return token;
+        }
+        return login();
+    }
+
+    private synchronized boolean reuseCachedToken() {
+        Optional<String> cachedToken = tokenCache.flatMap(TokenCache::read);
+        if (cachedToken.isEmpty()) {
+            return false;
         }
         try {
-            token = applicationServerApi.login(username, password);
+            if (!applicationServerApi.isSessionActive(cachedToken.get())) {
+                log.debug("Remembered session of %s is not active".formatted(username));
+                return false;
+            }
+        } catch (RuntimeException e) {
+            log.debug("Could not check the remembered session of " + username, e);
+            return false;
+        }
+        log.debug("Reusing the remembered session of " + username);
+        validUntilNanos = System.nanoTime() + validityNanos;
+        token = cachedToken.get();
+        return true;
+    }
+
+    private synchronized String login() throws AuthenticationException {
+        String newToken;
+        try {
+            newToken = applicationServerApi.login(username, password);
         } catch (Exception e) {
             throw new ConnectionException("Connection to openBIS server failed.", e);
         }
-        if (Objects.isNull(token)) {
+        if (Objects.isNull(newToken)) {
             throw new AuthenticationException("openbis application server did not produce a session token for " + username, username);
         }
-        return token;
+        // written before the token, so a thread reading the new token sees its validity
+        validUntilNanos = System.nanoTime() + validityNanos;
+        token = newToken;
+        tokenCache.ifPresent(it -> it.write(newToken));
+        return newToken;
     }
 
+    /**
+     * openBIS reports sessions that ended with an <code>InvalidSessionException</code>, for example
+     * "Session token '...' is invalid: user is not logged in." or "Session no longer available.
+     * Please login again.". The exception is recognized by its class name or, if the remote
+     * exception was wrapped or could not be restored, by its message mentioning the session.
+     */
+    static boolean isSessionFailure(Throwable throwable) {
+        for (Throwable cause = throwable; Objects.nonNull(cause); cause = cause.getCause()) {
+            if (cause.getClass().getSimpleName().equals("InvalidSessionException")) {
+                return true;
+            }
+            String message = Objects.toString(cause.getMessage(), "").toLowerCase(Locale.ROOT);
+            if (message.contains("session") && (message.contains("invalid")
+                || message.contains("expired") || message.contains("not active")
+                || message.contains("no longer available"))) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -0,0 +1,139 @@
+package life.qbic.qpostman.openbis;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Optional;
+import java.util.Set;
+import life.qbic.qpostman.common.MetadataCache;
+import life.qbic.qpostman.common.options.AuthenticationOptions;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Remembers the session token of a user on an application server in a file only the user can
+ * read, so later invocations can reuse the session instead of logging in again.
+ * <p>
+ * Files that other users could read are ignored. The cache is an optimization only. Tokens that
+ * cannot be read or written are ignored.
+ */
+public class TokenCache {
+
+  private static final Logger log = LogManager.getLogger(TokenCache.class);
+  private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString(
+      "rw-------");
+  private static final Set<PosixFilePermission> OWNER_ONLY_DIRECTORY =
+      PosixFilePermissions.fromString("rwx------");
+
+  private final Path file;
+
+  private TokenCache(Path file) {
+    this.file = file;
+  }
+
+  /**
+   * Opens the token cache of a user on an application server.
+   *
+   * @param directory            the directory to keep the token in
+   * @param applicationServerUrl the url of the application server
+   * @param user                 the user
+   * @return the token cache; empty if the file system cannot restrict access to the user
+   */
+  public static Optional<TokenCache> open(Path directory, String applicationServerUrl,
+      String user) {
+    if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+      log.warn("Not reusing sessions: the file system cannot restrict the session file to you.");
+      return Optional.empty();
+    }
+    try {
+      Files.createDirectories(directory,
+          PosixFilePermissions.asFileAttribute(OWNER_ONLY_DIRECTORY));
+    } catch (IOException e) {
+      log.warn("Not reusing sessions: " + e.getMessage());
+      return Optional.empty();
+    }
+    return Optional.of(new TokenCache(directory.resolve(key(applicationServerUrl, user))));
+  }
+
+  /**
+   * Opens the token cache configured by the options in the user's cache directory.
+   *
+   * @param authenticationOptions the authentication options
+   * @param applicationServerUrl  the url of the application server
+   * @return the token cache; empty if sessions are not reused or cannot be remembered safely
+   */
+  public static Optional<TokenCache> open(AuthenticationOptions authenticationOptions,
+      String applicationServerUrl) {
+    if (!authenticationOptions.reuseSession) {
+      return Optional.empty();
+    }
+    return open(MetadataCache.defaultDirectory().resolve("sessions"), applicationServerUrl,
+        authenticationOptions.user);
+  }
+
+  private static String key(String applicationServerUrl, String user) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      return HexFormat.of().formatHex(digest.digest(
+          (applicationServerUrl + "\n" + user).getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return the remembered token; empty if none is remembered or others could read it
+   */
+  public Optional<String> read() {
+    try {
+      if (!OWNER_ONLY.containsAll(Files.getPosixFilePermissions(file))) {
+        log.warn("Ignoring session file %s readable by others.".formatted(file));
+        return Optional.empty();
+      }
+      String token = Files.readString(file, StandardCharsets.UTF_8).strip();
+      return token.isEmpty() ? Optional.empty() : Optional.of(token);
+    } catch (NoSuchFileException e) {
+      return Optional.empty();
+    } catch (IOException e) {
+      log.debug("Could not read session file " + file, e);
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Remembers a token. Replaces the remembered token.
+   *
+   * @param token the session token
+   */
+  public void write(String token) {
+    try {
+      Path temporaryFile = Files.createTempFile(file.getParent(), file.getFileName().toString(),
+          ".tmp", PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+      Files.writeString(temporaryFile, token, StandardCharsets.UTF_8);
+      Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      log.debug("Could not write session file " + file, e);
+    }
+  }
+
+  /**
+   * Forgets the remembered token.
+   */
+  public void clear() {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      log.debug("Could not delete session file " + file, e);
+    }
+  }
+}
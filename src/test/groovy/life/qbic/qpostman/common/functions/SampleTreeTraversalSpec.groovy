@@ -0,0 +1,82 @@
+package life.qbic.qpostman.common.functions
+
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.sample.Sample
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.sample.fetchoptions.SampleFetchOptions
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.sample.id.SamplePermId
+import spock.lang.Specification
+
+class SampleTreeTraversalSpec extends Specification {
+
+    def "samples shared by several trees are visited once"() {
+        given:
+        Sample pool = sample("POOL")
+        Sample first = sample("FIRST", pool)
+        Sample second = sample("SECOND", pool)
+        def traversal = new SampleTreeTraversal()
+
+        when:
+        def samples = traversal.newSamples([first, second])
+
+        then:
+        samples*.code.sort() == ["FIRST", "POOL", "SECOND"]
+        traversal.visitedNodes() == 3
+        traversal.traversedEdges() == 2
+    }
+
+    def "samples shared by several trees are attributed to the first root reaching them"() {
+        given:
+        Sample pool = sample("POOL")
+        List<Sample> roots = (1..50).collect { sample("ROOT$it", sample("CHILD$it", pool)) }
+
+        when:
+        def samplesByRoot = new SampleTreeTraversal().newSamplesByRoot(roots)
+
+        then:
+        samplesByRoot[0]*.code == ["ROOT1", "CHILD1", "POOL"]
+        (2..50).every { samplesByRoot[it - 1]*.code == ["ROOT" + it, "CHILD" + it] }
+    }
+
+    def "samples visited before are not returned again"() {
+        given:
+        Sample child = sample("CHILD")
+        Sample root = sample("ROOT", child)
+        def traversal = new SampleTreeTraversal()
+        traversal.newSamples([root])
+
+        when:
+        def samples = traversal.newSamples([root, sample("OTHER", child)])
+
+        then:
+        samples*.code == ["OTHER"]
+    }
+
+    def "deep hierarchies are traversed"() {
+        given:
+        Sample root = sample("S0")
+        Sample current = root
+        for (int i = 1; i < 100_000; i++) {
+            Sample child = sample("S$i")
+            current.setChildren([child])
+            current = child
+        }
+        def traversal = new SampleTreeTraversal()
+
+        when:
+        def samples = traversal.newSamples([root])
+
+        then:
+        samples.size() == 100_000
+        traversal.traversedEdges() == 99_999
+    }
+
+    private static Sample sample(String code, Sample... children) {
+        def fetchOptions = new SampleFetchOptions()
+        fetchOptions.withChildren()
+        def sample = new Sample()
+        sample.setFetchOptions(fetchOptions)
+        sample.setCode(code)
+        sample.setPermId(new SamplePermId(code))
+        sample.setChildren(children.toList())
+        return sample
+    }
+}
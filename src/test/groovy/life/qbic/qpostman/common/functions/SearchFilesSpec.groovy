@@ -0,0 +1,257 @@
+package life.qbic.qpostman.common.functions
+
+import ch.ethz.sis.openbis.generic.asapi.v3.IApplicationServerApi
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.common.search.SearchResult
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.dataset.DataSet
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.dataset.fetchoptions.DataSetFetchOptions
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.dataset.id.DataSetPermId
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.datastore.DataStore
+import ch.ethz.sis.openbis.generic.dssapi.v3.IDataStoreServerApi
+import ch.ethz.sis.openbis.generic.dssapi.v3.dto.datasetfile.DataSetFile
+import ch.ethz.sis.openbis.generic.dssapi.v3.dto.datasetfile.id.DataSetFilePermId
+import life.qbic.qpostman.common.structures.DataSetWrapper
+import life.qbic.qpostman.openbis.DataStoreServer
+import life.qbic.qpostman.openbis.OpenBisSession
+import spock.lang.Specification
+
+import java.util.concurrent.atomic.AtomicLong
+
+class SearchFilesSpec extends Specification {
+
+    OpenBisSession session
+
+    def setup() {
+        IApplicationServerApi applicationServerApi = Stub() {
+            login(_, _) >> "token"
+            isSessionActive(_) >> true
+        }
+        session = new OpenBisSession(applicationServerApi, "user", "password")
+    }
+
+    def "every file is assigned to the dataset it was listed for"() {
+        given:
+        List<DataSetWrapper> dataSets = (1..3).collect { dataSet("DS$it") }
+        IDataStoreServerApi dataStoreServerApi = Stub() {
+            searchFiles(_, _, _) >>> dataSets.collect { searchResult(it, 2) }
+        }
+        def searchFiles = new SearchFiles([new DataStoreServer("dss", dataStoreServerApi)], session, {})
+
+        when:
+        def dataFiles = searchFiles.apply(dataSets)
+
+        then:
+        dataFiles.size() == 6
+        dataFiles.every { it.dataSet().is(dataSets.find { dataSet -> dataSet.dataSetPermId() == it.fileId().getDataSetId() }) }
+    }
+
+    def "files of several datasets listed with one request are assigned to their dataset"() {
+        given:
+        List<DataSetWrapper> dataSets = (1..3).collect { dataSet("DS$it") }
+        List<DataSetFile> files = dataSets.collectMany { searchResult(it, 2).getObjects() }
+        IDataStoreServerApi dataStoreServerApi = Mock()
+        def searchFiles = new SearchFiles([new DataStoreServer("dss", dataStoreServerApi)], session, {})
+            .withChunkSize(3)
+
+        when:
+        def dataFiles = searchFiles.apply(dataSets)
+
+        then:
+        1 * dataStoreServerApi.searchFiles(_, _, _) >> new SearchResult<>(files, files.size())
+        dataFiles.size() == 6
+        dataFiles.every { it.dataSet().is(dataSets.find { dataSet -> dataSet.dataSetPermId() == it.fileId().getDataSetId() }) }
+    }
+
+    def "files found on several data store servers are listed once"() {
+        given:
+        DataSetWrapper dataSet = dataSet("DS1")
+        IDataStoreServerApi firstServerApi = Stub() {
+            searchFiles(_, _, _) >> searchResult(dataSet, 2)
+        }
+        IDataStoreServerApi secondServerApi = Stub() {
+            searchFiles(_, _, _) >> searchResult(dataSet, 3)
+        }
+        def firstServer = new DataStoreServer("dss1", firstServerApi)
+        def secondServer = new DataStoreServer("dss2", secondServerApi)
+        def searchFiles = new SearchFiles([firstServer, secondServer], session, {})
+            .withThreadsPerServer(2)
+
+        when:
+        def dataFiles = searchFiles.apply([dataSet])
+
+        then:
+        dataFiles.size() == 3
+        dataFiles.count { it.dataStoreServer().is(firstServer) } == 2
+    }
+
+    def "datasets with a known data store are only listed on the server storing them"() {
+        given:
+        DataSetWrapper dataSet = dataSet("DS1", dataStore("DSS2", "https://dss.example.org/datastore_server2/"))
+        IDataStoreServerApi firstServerApi = Mock()
+        IDataStoreServerApi secondServerApi = Mock()
+        def searchFiles = new SearchFiles([
+            new DataStoreServer("https://dss.example.org/datastore_server", firstServerApi),
+            new DataStoreServer("https://dss.example.org/datastore_server2", secondServerApi)], session, {})
+
+        when:
+        def dataFiles = searchFiles.apply([dataSet])
+
+        then:
+        0 * firstServerApi.searchFiles(_, _, _)
+        1 * secondServerApi.searchFiles(_, _, _) >> searchResult(dataSet, 2)
+        dataFiles.size() == 2
+    }
+
+    def "datasets with an unknown data store are listed on all servers"() {
+        given:
+        DataSetWrapper dataSet = dataSet("DS1", dataStore("OTHER", "https://other.example.org"))
+        IDataStoreServerApi firstServerApi = Mock()
+        IDataStoreServerApi secondServerApi = Mock()
+        def searchFiles = new SearchFiles([
+            new DataStoreServer("https://dss.example.org/datastore_server", firstServerApi),
+            new DataStoreServer("https://dss.example.org/datastore_server2", secondServerApi)], session, {})
+
+        when:
+        def dataFiles = searchFiles.apply([dataSet])
+
+        then:
+        1 * firstServerApi.searchFiles(_, _, _) >> new SearchResult<>([], 0)
+        1 * secondServerApi.searchFiles(_, _, _) >> searchResult(dataSet, 2)
+        dataFiles.size() == 2
+    }
+
+    def "datasets of a data store found on a server are only listed on that server afterwards"() {
+        given:
+        DataStore otherDataStore = dataStore("OTHER", "https://other.example.org")
+        List<DataSetWrapper> dataSets = (1..3).collect { dataSet("DS$it", otherDataStore) }
+        IDataStoreServerApi firstServerApi = Mock()
+        IDataStoreServerApi secondServerApi = Mock()
+        def searchFiles = new SearchFiles([
+            new DataStoreServer("https://dss.example.org/datastore_server", firstServerApi),
+            new DataStoreServer("https://dss.example.org/datastore_server2", secondServerApi)], session, {})
+
+        when:
+        def dataFiles = searchFiles.apply(dataSets)
+
+        then:
+        1 * firstServerApi.searchFiles(_, _, _) >> new SearchResult<>([], 0)
+        3 * secondServerApi.searchFiles(_, _, _) >>> dataSets.collect { searchResult(it, 2) }
+        dataFiles.size() == 6
+    }
+
+    def "directories are not listed"() {
+        given:
+        DataSetWrapper dataSet = dataSet("DS1")
+        SearchResult<DataSetFile> result = searchResult(dataSet, 2)
+        result.getObjects().get(0).setDirectory(true)
+        IDataStoreServerApi dataStoreServerApi = Stub() {
+            searchFiles(_, _, _) >> result
+        }
+        def searchFiles = new SearchFiles([new DataStoreServer("dss", dataStoreServerApi)], session, {})
+
+        when:
+        def dataFiles = searchFiles.apply([dataSet])
+
+        then:
+        dataFiles.size() == 1
+    }
+
+    def "listing work grows linearly with the number of datasets and files"() {
+        given:
+        int chunkSize = 100
+        int filesPerDataSet = 20
+        List<DataSetWrapper> dataSets = (1..numberOfDataSets).collect {
+            dataSet(new CountingPermId("DS$it"))
+        }
+        // the server answers with its own permId objects, as deserialized responses do
+        List<SearchResult<DataSetFile>> results = dataSets.collate(chunkSize).collect { chunk ->
+            List<DataSetFile> files = chunk.collectMany { dataSet ->
+                searchResult(new CountingPermId(dataSet.dataSetPermId().getPermId()),
+                    filesPerDataSet).getObjects()
+            }
+            return new SearchResult<>(files, files.size())
+        }
+        IDataStoreServerApi dataStoreServerApi = Mock()
+        def searchFiles = new SearchFiles([new DataStoreServer("dss", dataStoreServerApi)], session, {})
+            .withChunkSize(chunkSize)
+        CountingPermId.comparisons.set(0)
+
+        when:
+        def dataFiles = searchFiles.apply(dataSets)
+
+        then: "one request per chunk and a constant number of permId comparisons per file"
+        numberOfDataSets.intdiv(chunkSize) * dataStoreServerApi.searchFiles(_, _, _) >>> results
+        dataFiles.size() == numberOfDataSets * filesPerDataSet
+        CountingPermId.comparisons.get() <= 2 * dataFiles.size()
+
+        where:
+        numberOfDataSets << [500, 1_000, 2_000, 4_000]
+    }
+
+    /**
+     * Counts how often dataset permIds are compared. Assigning files to their dataset by comparing
+     * against every requested dataset compares as often as files times datasets.
+     */
+    static class CountingPermId extends DataSetPermId {
+
+        static final AtomicLong comparisons = new AtomicLong()
+
+        CountingPermId(String permId) {
+            super(permId)
+        }
+
+        @Override
+        boolean equals(Object other) {
+            comparisons.incrementAndGet()
+            return super.equals(other)
+        }
+
+        @Override
+        int hashCode() {
+            return super.hashCode()
+        }
+    }
+
+    private static DataSetWrapper dataSet(String permId) {
+        return dataSet(new DataSetPermId(permId))
+    }
+
+    private static DataSetWrapper dataSet(DataSetPermId permId) {
+        DataSet dataSet = new DataSet()
+        dataSet.setPermId(permId)
+        return new DataSetWrapper(dataSet)
+    }
+
+    private static DataSetWrapper dataSet(String permId, DataStore dataStore) {
+        DataSetFetchOptions fetchOptions = new DataSetFetchOptions()
+        fetchOptions.withDataStore()
+        DataSet dataSet = new DataSet()
+        dataSet.setFetchOptions(fetchOptions)
+        dataSet.setPermId(new DataSetPermId(permId))
+        dataSet.setDataStore(dataStore)
+        return new DataSetWrapper(dataSet)
+    }
+
+    private static DataStore dataStore(String code, String downloadUrl) {
+        DataStore dataStore = new DataStore()
+        dataStore.setCode(code)
+        dataStore.setDownloadUrl(downloadUrl)
+        return dataStore
+    }
+
+    private static SearchResult<DataSetFile> searchResult(DataSetWrapper dataSet, int numberOfFiles) {
+        return searchResult(dataSet.dataSetPermId(), numberOfFiles)
+    }
+
+    private static SearchResult<DataSetFile> searchResult(DataSetPermId dataSetPermId, int numberOfFiles) {
+        List<DataSetFile> files = (1..numberOfFiles).collect {
+            DataSetFile file = new DataSetFile()
+            file.setPath("original/file$it")
+            file.setDirectory(false)
+            file.setFileLength(1L)
+            file.setDataSetPermId(dataSetPermId)
+            file.setPermId(new DataSetFilePermId(dataSetPermId, "original/file$it"))
+            return file
+        }
+        return new SearchResult<>(files, files.size())
+    }
+}
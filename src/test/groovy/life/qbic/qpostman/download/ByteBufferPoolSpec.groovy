@@ -0,0 +1,118 @@
+package life.qbic.qpostman.download
+
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+
+class ByteBufferPoolSpec extends Specification {
+
+    def "acquired buffers are rounded up to a size class and limited to the requested size"() {
+        given:
+        ByteBufferPool pool = new ByteBufferPool(false, 1 << 20)
+
+        when:
+        ByteBuffer buffer = pool.acquire(size)
+
+        then:
+        buffer.capacity() == capacity
+        buffer.position() == 0
+        buffer.limit() == size
+
+        where:
+        size   | capacity
+        1      | 4096
+        4096   | 4096
+        4097   | 8192
+        65536  | 65536
+        100000 | 131072
+    }
+
+    def "a released buffer is reused for a request of its size class"() {
+        given:
+        ByteBufferPool pool = new ByteBufferPool(false, 1 << 20)
+        ByteBuffer released = pool.acquire(8192)
+        pool.release(released)
+
+        when:
+        ByteBuffer acquired = pool.acquire(5000)
+
+        then:
+        acquired.is(released)
+        acquired.limit() == 5000
+        pool.retainedBytes() == 0
+    }
+
+    def "the pool never retains more than maxRetainedBytes"() {
+        given:
+        long maxRetainedBytes = 5 * 4096
+        ByteBufferPool pool = new ByteBufferPool(false, maxRetainedBytes)
+        List<ByteBuffer> buffers = (1..20).collect { pool.acquire(size) }
+
+        when:
+        List<Long> retained = buffers.collect {
+            pool.release(it)
+            pool.retainedBytes()
+        }
+
+        then:
+        retained.every { it <= maxRetainedBytes }
+        retained.last() == maxRetainedBytes.intdiv(capacity) * capacity
+
+        where:
+        size | capacity
+        4096 | 4096
+        8192 | 8192
+    }
+
+    def "buffers larger than maxRetainedBytes are not retained"() {
+        given:
+        ByteBufferPool pool = new ByteBufferPool(false, 4096)
+
+        when:
+        pool.release(pool.acquire(8192))
+
+        then:
+        pool.retainedBytes() == 0
+    }
+
+    def "buffers of other size classes are dropped to retain a released buffer"() {
+        given:
+        ByteBufferPool pool = new ByteBufferPool(false, 4 * 4096)
+        List<ByteBuffer> small = (1..4).collect { pool.acquire(4096) }
+        ByteBuffer large = pool.acquire(8192)
+        small.each { pool.release(it) }
+
+        when:
+        pool.release(large)
+
+        then:
+        pool.retainedBytes() == 4 * 4096
+        pool.acquire(8192).is(large)
+        pool.retainedBytes() == 2 * 4096
+    }
+
+    def "concurrent use never leaves more than maxRetainedBytes retained"() {
+        given:
+        long maxRetainedBytes = 16 * 4096
+        ByteBufferPool pool = new ByteBufferPool(false, maxRetainedBytes)
+        List<Integer> sizes = [4096, 8192, 16384]
+
+        when:
+        List<Thread> threads = (1..8).collect { int index ->
+            Thread.start {
+                Random random = new Random(index)
+                1000.times {
+                    List<ByteBuffer> buffers = (1..4).collect {
+                        pool.acquire(sizes[random.nextInt(sizes.size())])
+                    }
+                    buffers.each { pool.release(it) }
+                }
+            }
+        }
+        threads.each { it.join() }
+
+        then:
+        pool.retainedBytes() <= maxRetainedBytes
+        pool.retainedBytes() >= 0
+    }
+}
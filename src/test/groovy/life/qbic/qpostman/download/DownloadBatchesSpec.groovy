@@ -0,0 +1,97 @@
+package life.qbic.qpostman.download
+
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.dataset.DataSet
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.dataset.id.DataSetPermId
+import ch.ethz.sis.openbis.generic.dssapi.v3.IDataStoreServerApi
+import ch.ethz.sis.openbis.generic.dssapi.v3.dto.datasetfile.DataSetFile
+import ch.ethz.sis.openbis.generic.dssapi.v3.dto.datasetfile.id.DataSetFilePermId
+import life.qbic.qpostman.common.structures.DataFile
+import life.qbic.qpostman.common.structures.DataSetWrapper
+import life.qbic.qpostman.openbis.DataStoreServer
+import spock.lang.Specification
+
+class DownloadBatchesSpec extends Specification {
+
+    DataStoreServer firstServer = new DataStoreServer("https://first.example", Stub(IDataStoreServerApi))
+    DataStoreServer secondServer = new DataStoreServer("https://second.example", Stub(IDataStoreServerApi))
+
+    def "files larger than maxFileSize are not batched"() {
+        given:
+        DownloadBatches downloadBatches = new DownloadBatches(100, 10, 1000)
+        DataFile small = dataFile("DS1", "small", 100, firstServer)
+        DataFile large = dataFile("DS1", "large", 101, firstServer)
+        DataFile other = dataFile("DS1", "other", 50, firstServer)
+
+        expect:
+        downloadBatches.apply([small, large, other]) == [[small, other], [large]]
+    }
+
+    def "batches hold at most maxFilesPerBatch files"() {
+        given:
+        DownloadBatches downloadBatches = new DownloadBatches(100, 3, 1000)
+        List<DataFile> dataFiles = (1..7).collect { dataFile("DS1", "file$it", 10, firstServer) }
+
+        when:
+        List<List<DataFile>> batches = downloadBatches.apply(dataFiles)
+
+        then:
+        batches*.size() == [3, 3, 1]
+        batches.flatten() == dataFiles
+    }
+
+    def "batches hold at most maxBatchSize bytes"() {
+        given:
+        DownloadBatches downloadBatches = new DownloadBatches(100, 10, 250)
+        List<DataFile> dataFiles = (1..5).collect { dataFile("DS1", "file$it", 100, firstServer) }
+
+        when:
+        List<List<DataFile>> batches = downloadBatches.apply(dataFiles)
+
+        then:
+        batches*.size() == [2, 2, 1]
+        batches.every { batch -> batch.sum { it.fileSize().bytes() } <= 250 }
+        batches.flatten() == dataFiles
+    }
+
+    def "nothing is batched with less than two files per batch or a maxFileSize of 0"() {
+        given:
+        DownloadBatches downloadBatches = new DownloadBatches(maxFileSize, maxFilesPerBatch, 1000)
+        List<DataFile> dataFiles = (1..3).collect { dataFile("DS1", "file$it", 10, firstServer) }
+
+        expect:
+        downloadBatches.apply(dataFiles) == dataFiles.collect { [it] }
+
+        where:
+        maxFileSize | maxFilesPerBatch
+        100         | 1
+        100         | 0
+        0           | 10
+    }
+
+    def "only files of the same dataset on the same server are batched together"() {
+        given:
+        DownloadBatches downloadBatches = new DownloadBatches(100, 10, 1000)
+        DataFile first = dataFile("DS1", "first", 10, firstServer)
+        DataFile otherDataSet = dataFile("DS2", "second", 10, firstServer)
+        DataFile otherServer = dataFile("DS1", "third", 10, secondServer)
+        DataFile last = dataFile("DS1", "fourth", 10, firstServer)
+
+        expect:
+        downloadBatches.apply([first, otherDataSet, otherServer, last]) ==
+            [[first, last], [otherDataSet], [otherServer]]
+    }
+
+    private static DataFile dataFile(String dataSetPermId, String fileName, long fileLength,
+                                     DataStoreServer dataStoreServer) {
+        DataSet dataSet = new DataSet()
+        dataSet.setPermId(new DataSetPermId(dataSetPermId))
+        DataSetWrapper dataSetWrapper = new DataSetWrapper(dataSet)
+        DataSetFile file = new DataSetFile()
+        file.setPath("original/$fileName")
+        file.setDirectory(false)
+        file.setFileLength(fileLength)
+        file.setDataSetPermId(dataSetWrapper.dataSetPermId())
+        file.setPermId(new DataSetFilePermId(dataSetWrapper.dataSetPermId(), "original/$fileName"))
+        return new DataFile(file, dataSetWrapper, dataStoreServer)
+    }
+}
@@ -0,0 +1,165 @@
+package life.qbic.qpostman.download
+
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.dataset.DataSet
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.dataset.id.DataSetPermId
+import ch.ethz.sis.openbis.generic.dssapi.v3.dto.datasetfile.DataSetFile
+import ch.ethz.sis.openbis.generic.dssapi.v3.dto.datasetfile.id.DataSetFilePermId
+import life.qbic.qpostman.common.structures.DataFile
+import life.qbic.qpostman.common.structures.DataSetWrapper
+import spock.lang.Specification
+import spock.lang.TempDir
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import java.util.zip.CRC32
+
+class DownloadIndexSpec extends Specification {
+
+    @TempDir
+    Path outputDirectory
+
+    def "a downloaded dataset is complete while its files are unchanged on disk"() {
+        given:
+        List<DataFile> dataFiles = dataFiles("DS1", "first", "second")
+        DownloadIndex downloadIndex = DownloadIndex.open(outputDirectory)
+        recordComplete(downloadIndex, "DS1", dataFiles)
+
+        expect:
+        downloadIndex.isComplete("DS1", dataFiles, this::outputPath)
+    }
+
+    def "a downloaded dataset is not complete once one of its files was deleted"() {
+        given:
+        List<DataFile> dataFiles = dataFiles("DS1", "first", "second")
+        DownloadIndex downloadIndex = DownloadIndex.open(outputDirectory)
+        recordComplete(downloadIndex, "DS1", dataFiles)
+
+        when:
+        Files.delete(outputPath(dataFiles[1]))
+
+        then:
+        !downloadIndex.isComplete("DS1", dataFiles, this::outputPath)
+    }
+
+    def "a downloaded dataset is not complete once one of its files was modified"() {
+        given:
+        List<DataFile> dataFiles = dataFiles("DS1", "first", "second")
+        DownloadIndex downloadIndex = DownloadIndex.open(outputDirectory)
+        recordComplete(downloadIndex, "DS1", dataFiles)
+
+        when:
+        Path outputPath = outputPath(dataFiles[0])
+        Files.setLastModifiedTime(outputPath,
+            FileTime.fromMillis(Files.getLastModifiedTime(outputPath).toMillis() + 60_000))
+
+        then:
+        !downloadIndex.isComplete("DS1", dataFiles, this::outputPath)
+    }
+
+    def "a dataset with files that were not downloaded before is not complete"() {
+        given:
+        List<DataFile> dataFiles = dataFiles("DS1", "first", "second")
+        DownloadIndex downloadIndex = DownloadIndex.open(outputDirectory)
+        recordComplete(downloadIndex, "DS1", dataFiles)
+
+        expect:
+        !downloadIndex.isComplete("DS1", dataFiles("DS1", "first", "second", "third"),
+            this::outputPath)
+    }
+
+    def "recorded files are known after the index was reopened"() {
+        given:
+        List<DataFile> dataFiles = dataFiles("DS1", "first", "second")
+        DownloadIndex downloadIndex = DownloadIndex.open(outputDirectory)
+        recordComplete(downloadIndex, "DS1", dataFiles)
+
+        when: "the index is reopened without compacting the log"
+        DownloadIndex reopenedIndex = DownloadIndex.open(outputDirectory)
+
+        then:
+        reopenedIndex.isComplete("DS1", dataFiles, this::outputPath)
+        dataFiles.every { reopenedIndex.isPresent(it, outputPath(it)) }
+    }
+
+    def "closing the index compacts the log into the snapshot"() {
+        given:
+        List<DataFile> dataFiles = dataFiles("DS1", "first", "second")
+        DownloadIndex downloadIndex = DownloadIndex.open(outputDirectory)
+        recordComplete(downloadIndex, "DS1", dataFiles)
+
+        when:
+        downloadIndex.close()
+
+        then:
+        Files.size(outputDirectory.resolve(DownloadIndex.LOG_FILE_NAME)) == 0
+        Files.exists(outputDirectory.resolve(DownloadIndex.SNAPSHOT_FILE_NAME))
+        DownloadIndex.open(outputDirectory).isComplete("DS1", dataFiles, this::outputPath)
+    }
+
+    def "a file with a matching legacy checksum file is imported"() {
+        given:
+        DataFile dataFile = dataFiles("DS1", "first")[0]
+        Path outputPath = outputPath(dataFile)
+        Files.writeString(Path.of(outputPath.toString() + ".crc32"),
+            Long.toHexString(dataFile.crc32()) + "\tfirst")
+        DownloadIndex downloadIndex = DownloadIndex.open(outputDirectory)
+
+        expect:
+        downloadIndex.isPresent(dataFile, outputPath)
+
+        when: "the checksum file is removed"
+        Files.delete(Path.of(outputPath.toString() + ".crc32"))
+
+        then: "the imported entry is used"
+        DownloadIndex.open(outputDirectory).isPresent(dataFile, outputPath)
+    }
+
+    def "a file with a different legacy checksum is not present"() {
+        given:
+        DataFile dataFile = dataFiles("DS1", "first")[0]
+        Path outputPath = outputPath(dataFile)
+        Files.writeString(Path.of(outputPath.toString() + ".crc32"),
+            Long.toHexString(dataFile.crc32() + 1) + "\tfirst")
+
+        expect:
+        !DownloadIndex.open(outputDirectory).isPresent(dataFile, outputPath)
+    }
+
+    private Path outputPath(DataFile dataFile) {
+        return outputDirectory.resolve(dataFile.dataSet().dataSetPermId().getPermId())
+            .resolve(dataFile.filePath())
+    }
+
+    private void recordComplete(DownloadIndex downloadIndex, String dataSetPermId,
+                                List<DataFile> dataFiles) {
+        dataFiles.each { downloadIndex.record(it, outputPath(it)) }
+        downloadIndex.recordComplete(dataSetPermId, dataFiles)
+    }
+
+    /**
+     * Creates data files with their name as content and writes them to their output path.
+     */
+    private List<DataFile> dataFiles(String dataSetPermId, String... fileNames) {
+        DataSet dataSet = new DataSet()
+        dataSet.setPermId(new DataSetPermId(dataSetPermId))
+        DataSetWrapper dataSetWrapper = new DataSetWrapper(dataSet)
+        return fileNames.collect { fileName ->
+            byte[] content = fileName.getBytes("UTF-8")
+            CRC32 crc32 = new CRC32()
+            crc32.update(content)
+            DataSetFile file = new DataSetFile()
+            file.setPath("original/$fileName")
+            file.setDirectory(false)
+            file.setFileLength((long) content.length)
+            file.setChecksumCRC32((int) crc32.getValue())
+            file.setDataSetPermId(dataSetWrapper.dataSetPermId())
+            file.setPermId(new DataSetFilePermId(dataSetWrapper.dataSetPermId(), "original/$fileName"))
+            DataFile dataFile = new DataFile(file, dataSetWrapper, null)
+            Path outputPath = outputPath(dataFile)
+            Files.createDirectories(outputPath.getParent())
+            Files.write(outputPath, content)
+            return dataFile
+        }
+    }
+}
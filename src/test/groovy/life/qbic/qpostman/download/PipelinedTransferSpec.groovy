@@ -0,0 +1,141 @@
+package life.qbic.qpostman.download
+
+import spock.lang.Specification
+import spock.lang.TempDir
+
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.channels.NonWritableChannelException
+import java.nio.channels.ReadableByteChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.zip.CRC32
+
+class PipelinedTransferSpec extends Specification {
+
+    static final int BUFFER_SIZE = 4096
+    static final int DEPTH = 4
+
+    @TempDir
+    Path outputDirectory
+
+    ByteBufferPool bufferPool = new ByteBufferPool(false, 1 << 20)
+    PipelinedTransfer transfer = new PipelinedTransfer(bufferPool, DEPTH)
+    WriteProgressListener progressListener = Mock()
+
+    def cleanup() {
+        transfer.close()
+    }
+
+    def "all bytes are written with their checksum and every buffer is released"() {
+        given:
+        byte[] content = content(10 * BUFFER_SIZE + 123)
+        Path outputFile = outputDirectory.resolve("file")
+
+        when:
+        long crc32 = FileChannel.open(outputFile, StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE).withCloseable { outputChannel ->
+            transfer.write(Channels.newChannel(new ByteArrayInputStream(content)), outputChannel,
+                BUFFER_SIZE, progressListener)
+        }
+
+        then:
+        Files.readAllBytes(outputFile) == content
+        crc32 == crc32Of(content)
+        bufferPool.retainedBytes() == DEPTH * BUFFER_SIZE
+        1 * progressListener.finish()
+    }
+
+    def "a reader failing mid-stream releases every buffer"() {
+        given:
+        FailingChannel inputChannel = new FailingChannel(content(100 * BUFFER_SIZE), 5)
+        Path outputFile = outputDirectory.resolve("file")
+
+        when:
+        FileChannel.open(outputFile, StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE).withCloseable { outputChannel ->
+            transfer.write(inputChannel, outputChannel, BUFFER_SIZE, progressListener)
+        }
+
+        then:
+        IOException e = thrown()
+        e.message == "Connection reset"
+        bufferPool.retainedBytes() == DEPTH * BUFFER_SIZE
+        0 * progressListener.finish()
+    }
+
+    def "a failing writer releases every buffer and leaves the input channel open"() {
+        given:
+        ReadableByteChannel inputChannel = Channels.newChannel(
+            new ByteArrayInputStream(content(100 * BUFFER_SIZE)))
+        Path outputFile = Files.createFile(outputDirectory.resolve("file"))
+
+        when:
+        FileChannel.open(outputFile, StandardOpenOption.READ).withCloseable { readOnlyChannel ->
+            transfer.write(inputChannel, readOnlyChannel, BUFFER_SIZE, progressListener)
+        }
+
+        then:
+        thrown(NonWritableChannelException)
+        inputChannel.isOpen()
+        bufferPool.retainedBytes() == DEPTH * BUFFER_SIZE
+    }
+
+    def "a pipeline needs at least two buffers"() {
+        when:
+        new PipelinedTransfer(bufferPool, 1)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length]
+        new Random(42).nextBytes(content)
+        return content
+    }
+
+    private static long crc32Of(byte[] content) {
+        CRC32 crc32 = new CRC32()
+        crc32.update(content)
+        return crc32.getValue()
+    }
+
+    /**
+     * Provides the content in reads of at most one buffer and fails after a number of reads.
+     */
+    private static class FailingChannel implements ReadableByteChannel {
+
+        private final ByteBuffer content
+        private int readsLeft
+        private boolean open = true
+
+        FailingChannel(byte[] content, int reads) {
+            this.content = ByteBuffer.wrap(content)
+            this.readsLeft = reads
+        }
+
+        @Override
+        int read(ByteBuffer destination) throws IOException {
+            if (readsLeft-- <= 0) {
+                throw new IOException("Connection reset")
+            }
+            int length = Math.min(destination.remaining(), content.remaining())
+            destination.put(content.slice().limit(length))
+            content.position(content.position() + length)
+            return length
+        }
+
+        @Override
+        boolean isOpen() {
+            return open
+        }
+
+        @Override
+        void close() {
+            open = false
+        }
+    }
+}
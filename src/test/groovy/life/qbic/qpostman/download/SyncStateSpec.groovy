@@ -0,0 +1,134 @@
+package life.qbic.qpostman.download
+
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.dataset.DataSet
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.dataset.id.DataSetPermId
+import life.qbic.qpostman.common.functions.FileFilter
+import life.qbic.qpostman.common.structures.DataSetWrapper
+import life.qbic.qpostman.download.WriteFileToDisk.DownloadReport
+import spock.lang.Specification
+import spock.lang.TempDir
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.time.Instant
+
+class SyncStateSpec extends Specification {
+
+    @TempDir
+    Path outputDirectory
+
+    FileFilter noFilter = FileFilter.create()
+
+    def "identifiers are synchronized until the latest dataset found for them"() {
+        given:
+        SyncState syncState = SyncState.open(outputDirectory, noFilter)
+        syncState.found("QABCD", dataSet("DS1", "2024-01-01T00:00:00Z"))
+        syncState.found("QABCD", dataSet("DS2", "2024-03-01T00:00:00Z"))
+        syncState.found("QEFGH", dataSet("DS3", "2024-02-01T00:00:00Z"))
+
+        when:
+        boolean recorded = syncState.record(["QABCD", "QEFGH"], [success()])
+
+        then:
+        recorded
+        SyncState reopened = SyncState.open(outputDirectory, noFilter)
+        reopened.registeredSince(["QABCD"]) == Optional.of(Instant.parse("2024-03-01T00:00:00Z"))
+        reopened.registeredSince(["QEFGH"]) == Optional.of(Instant.parse("2024-02-01T00:00:00Z"))
+        reopened.registeredSince(["QABCD", "QEFGH"]) == Optional.of(Instant.parse("2024-02-01T00:00:00Z"))
+    }
+
+    def "all datasets are searched if any identifier was not synchronized before"() {
+        given:
+        SyncState syncState = SyncState.open(outputDirectory, noFilter)
+        syncState.found("QABCD", dataSet("DS1", "2024-01-01T00:00:00Z"))
+        syncState.record(["QABCD"], [success()])
+
+        expect:
+        SyncState.open(outputDirectory, noFilter).registeredSince(["QABCD", "QEFGH"]).isEmpty()
+    }
+
+    def "the state of downloads with another file filter is ignored"() {
+        given:
+        FileFilter fastqFilter = FileFilter.create().withSuffixes([".fastq.gz"])
+        SyncState syncState = SyncState.open(outputDirectory, fastqFilter)
+        syncState.found("QABCD", dataSet("DS1", "2024-01-01T00:00:00Z"))
+        syncState.record(["QABCD"], [success()])
+
+        expect:
+        SyncState.open(outputDirectory, noFilter).registeredSince(["QABCD"]).isEmpty()
+        SyncState.open(outputDirectory, FileFilter.create().withSuffixes([".FASTQ.GZ"]))
+            .registeredSince(["QABCD"]) == Optional.of(Instant.parse("2024-01-01T00:00:00Z"))
+    }
+
+    def "identifiers without found datasets are synchronized until the latest dataset found"() {
+        given:
+        SyncState syncState = SyncState.open(outputDirectory, noFilter)
+        syncState.found("QABCD", dataSet("DS1", "2024-01-01T00:00:00Z"))
+
+        when:
+        syncState.record(["QABCD", "QEFGH"], [success()])
+
+        then:
+        SyncState.open(outputDirectory, noFilter).registeredSince(["QEFGH"]) ==
+            Optional.of(Instant.parse("2024-01-01T00:00:00Z"))
+    }
+
+    def "identifiers keep their time if no dataset was found at all"() {
+        given:
+        SyncState first = SyncState.open(outputDirectory, noFilter)
+        first.found("QABCD", dataSet("DS1", "2024-01-01T00:00:00Z"))
+        first.record(["QABCD"], [success()])
+
+        when:
+        SyncState.open(outputDirectory, noFilter).record(["QABCD"], [])
+
+        then:
+        SyncState.open(outputDirectory, noFilter).registeredSince(["QABCD"]) ==
+            Optional.of(Instant.parse("2024-01-01T00:00:00Z"))
+    }
+
+    def "the state does not advance if a file failed to download"() {
+        given:
+        SyncState first = SyncState.open(outputDirectory, noFilter)
+        first.found("QABCD", dataSet("DS1", "2024-01-01T00:00:00Z"))
+        first.record(["QABCD"], [success()])
+        SyncState second = SyncState.open(outputDirectory, noFilter)
+        second.found("QABCD", dataSet("DS2", "2024-02-01T00:00:00Z"))
+
+        when:
+        boolean recorded = second.record(["QABCD"], [success(), failure()])
+
+        then:
+        !recorded
+        SyncState.open(outputDirectory, noFilter).registeredSince(["QABCD"]) ==
+            Optional.of(Instant.parse("2024-01-01T00:00:00Z"))
+    }
+
+    def "lines written without a file filter are read as the state of unfiltered downloads"() {
+        given:
+        Files.writeString(outputDirectory.resolve(SyncState.FILE_NAME),
+            "QABCD\t2024-01-01T00:00:00Z\nQEFGH\t2024-02-01T00:00:00Z\tsuffixes=.fastq.gz\n")
+
+        expect:
+        SyncState.open(outputDirectory, noFilter).registeredSince(["QABCD"]) ==
+            Optional.of(Instant.parse("2024-01-01T00:00:00Z"))
+        SyncState.open(outputDirectory, noFilter).registeredSince(["QEFGH"]).isEmpty()
+        SyncState.open(outputDirectory, FileFilter.create().withSuffixes([".fastq.gz"]))
+            .registeredSince(["QEFGH"]) == Optional.of(Instant.parse("2024-02-01T00:00:00Z"))
+    }
+
+    private static DataSetWrapper dataSet(String permId, String registrationTime) {
+        DataSet dataSet = new DataSet()
+        dataSet.setPermId(new DataSetPermId(permId))
+        dataSet.setRegistrationDate(Date.from(Instant.parse(registrationTime)))
+        return new DataSetWrapper(dataSet)
+    }
+
+    private DownloadReport success() {
+        return new DownloadReport(1L, 1L, outputDirectory.resolve("file"))
+    }
+
+    private DownloadReport failure() {
+        return new DownloadReport(1L, 0L, outputDirectory.resolve("file"))
+    }
+}
@@ -0,0 +1,149 @@
+package life.qbic.qpostman.download
+
+import ch.ethz.sis.openbis.generic.asapi.v3.IApplicationServerApi
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.dataset.DataSet
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.dataset.fetchoptions.DataSetFetchOptions
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.dataset.id.DataSetPermId
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.sample.Sample
+import ch.ethz.sis.openbis.generic.dssapi.v3.IDataStoreServerApi
+import ch.ethz.sis.openbis.generic.dssapi.v3.dto.datasetfile.DataSetFile
+import ch.ethz.sis.openbis.generic.dssapi.v3.dto.datasetfile.id.DataSetFilePermId
+import life.qbic.qpostman.common.structures.DataFile
+import life.qbic.qpostman.common.structures.DataSetWrapper
+import life.qbic.qpostman.download.WriteFileToDisk.DownloadReport
+import life.qbic.qpostman.openbis.DataStoreServer
+import life.qbic.qpostman.openbis.OpenBisSession
+import spock.lang.Specification
+import spock.lang.TempDir
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.zip.CRC32
+
+class WriteFileToDiskSpec extends Specification {
+
+    @TempDir
+    Path outputDirectory
+
+    IDataStoreServerApi dataStoreServerApi = Mock()
+    DataStoreServer dataStoreServer = new DataStoreServer("https://dss.example", dataStoreServerApi)
+    OpenBisSession session = new OpenBisSession(Stub(IApplicationServerApi) {
+        login(_, _) >> "token"
+    }, "user", "password")
+
+    def "files missing from the batch response are downloaded one by one"() {
+        given:
+        List<DataFile> dataFiles = ["first", "second", "third"].collect { dataFile(it) }
+        SeparateDownloads writeFileToDisk = new SeparateDownloads(outputDirectory, session)
+
+        when:
+        List<DownloadReport> downloadReports = writeFileToDisk.applyBatch(dataFiles)
+
+        then: "the batch response contains none of the files"
+        1 * dataStoreServerApi.downloadFiles("token", { it*.filePath == dataFiles*.fileId()*.filePath }, _) >>
+            new ByteArrayInputStream(new byte[0])
+        writeFileToDisk.separateDownloads == dataFiles
+        downloadReports == dataFiles.collect { writeFileToDisk.reportFor(it) }
+    }
+
+    def "all files of a failed batch request are downloaded one by one"() {
+        given:
+        List<DataFile> dataFiles = ["first", "second"].collect { dataFile(it) }
+        SeparateDownloads writeFileToDisk = new SeparateDownloads(outputDirectory, session)
+
+        when:
+        List<DownloadReport> downloadReports = writeFileToDisk.applyBatch(dataFiles)
+
+        then:
+        1 * dataStoreServerApi.downloadFiles("token", _, _) >> { throw new RuntimeException("Connection reset") }
+        writeFileToDisk.separateDownloads == dataFiles
+        downloadReports*.isSuccess().every()
+    }
+
+    def "files on disk already are neither requested in the batch nor one by one"() {
+        given:
+        List<DataFile> dataFiles = ["first", "second", "third"].collect { dataFile(it) }
+        writeToOutputPath(dataFiles[1])
+        SeparateDownloads writeFileToDisk = new SeparateDownloads(outputDirectory, session)
+
+        when:
+        List<DownloadReport> downloadReports = writeFileToDisk.applyBatch(dataFiles)
+
+        then:
+        1 * dataStoreServerApi.downloadFiles("token", { it*.filePath == ["original/first", "original/third"] }, _) >>
+            new ByteArrayInputStream(new byte[0])
+        writeFileToDisk.separateDownloads == [dataFiles[0], dataFiles[2]]
+        downloadReports*.outputPath() == dataFiles.collect { writeFileToDisk.outputPath(it) }
+        downloadReports*.isSuccess().every()
+    }
+
+    def "a single file is not requested as a batch"() {
+        given:
+        DataFile dataFile = dataFile("first")
+        SeparateDownloads writeFileToDisk = new SeparateDownloads(outputDirectory, session)
+
+        when:
+        writeFileToDisk.applyBatch([dataFile])
+
+        then:
+        0 * dataStoreServerApi.downloadFiles(*_)
+        writeFileToDisk.separateDownloads == [dataFile]
+    }
+
+    private DataFile dataFile(String fileName) {
+        Sample sample = new Sample()
+        sample.setCode("QABCD001AE")
+        DataSetFetchOptions fetchOptions = new DataSetFetchOptions()
+        fetchOptions.withSample()
+        DataSet dataSet = new DataSet()
+        dataSet.setFetchOptions(fetchOptions)
+        dataSet.setPermId(new DataSetPermId("DS1"))
+        dataSet.setSample(sample)
+        DataSetWrapper dataSetWrapper = new DataSetWrapper(dataSet)
+        byte[] content = fileName.getBytes("UTF-8")
+        CRC32 crc32 = new CRC32()
+        crc32.update(content)
+        DataSetFile file = new DataSetFile()
+        file.setPath("original/$fileName")
+        file.setDirectory(false)
+        file.setFileLength((long) content.length)
+        file.setChecksumCRC32((int) crc32.getValue())
+        file.setDataSetPermId(dataSetWrapper.dataSetPermId())
+        file.setPermId(new DataSetFilePermId(dataSetWrapper.dataSetPermId(), "original/$fileName"))
+        return new DataFile(file, dataSetWrapper, dataStoreServer)
+    }
+
+    /**
+     * Writes the file name as content, matching the checksum of {@link #dataFile(String)}.
+     */
+    private void writeToOutputPath(DataFile dataFile) {
+        Path outputPath = outputDirectory.resolve("QABCD001AE").resolve(dataFile.filePath())
+        Files.createDirectories(outputPath.getParent())
+        Files.writeString(outputPath, dataFile.fileName())
+    }
+
+    /**
+     * Records separate downloads instead of downloading the files.
+     */
+    private static class SeparateDownloads extends WriteFileToDisk {
+
+        final List<DataFile> separateDownloads = []
+        private final Map<DataFile, DownloadReport> reports = [:]
+
+        SeparateDownloads(Path outputDirectory, OpenBisSession session) {
+            super(new ByteBufferPool(false, 0), 4096, outputDirectory, 1, false, session)
+        }
+
+        @Override
+        DownloadReport apply(DataFile dataFile) {
+            separateDownloads << dataFile
+            return reportFor(dataFile)
+        }
+
+        DownloadReport reportFor(DataFile dataFile) {
+            return reports.computeIfAbsent(dataFile) {
+                new DownloadReport(dataFile.crc32(), dataFile.crc32(), outputPath(dataFile))
+            }
+        }
+    }
+}
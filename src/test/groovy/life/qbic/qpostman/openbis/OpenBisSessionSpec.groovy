@@ -0,0 +1,154 @@
+package life.qbic.qpostman.openbis
+
+import ch.ethz.sis.openbis.generic.asapi.v3.IApplicationServerApi
+import spock.lang.Specification
+
+import java.time.Duration
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.function.Function
+
+class OpenBisSessionSpec extends Specification {
+
+    IApplicationServerApi applicationServerApi = Mock()
+
+    def "the token is not checked with the server within the validity window"() {
+        when:
+        OpenBisSession session = new OpenBisSession(applicationServerApi, "user", "password",
+            Duration.ofMinutes(10))
+        def tokens = (1..5).collect { session.getToken() }
+
+        then:
+        1 * applicationServerApi.login("user", "password") >> "token"
+        0 * applicationServerApi.isSessionActive(_)
+        tokens.every { it == "token" }
+    }
+
+    def "the token is checked with the server once the validity window passed"() {
+        when:
+        OpenBisSession session = new OpenBisSession(applicationServerApi, "user", "password",
+            Duration.ZERO)
+        def tokens = (1..3).collect { session.getToken() }
+
+        then:
+        1 * applicationServerApi.login("user", "password") >> "token"
+        3 * applicationServerApi.isSessionActive("token") >> true
+        tokens.every { it == "token" }
+    }
+
+    def "an inactive token is replaced once the validity window passed"() {
+        when:
+        OpenBisSession session = new OpenBisSession(applicationServerApi, "user", "password",
+            Duration.ZERO)
+        def token = session.getToken()
+
+        then:
+        2 * applicationServerApi.login("user", "password") >>> ["expired", "renewed"]
+        1 * applicationServerApi.isSessionActive("expired") >> false
+        token == "renewed"
+    }
+
+    def "an invalidated token is replaced on the next request"() {
+        when:
+        OpenBisSession session = new OpenBisSession(applicationServerApi, "user", "password")
+        session.invalidate("expired")
+        def token = session.getToken()
+
+        then:
+        2 * applicationServerApi.login("user", "password") >>> ["expired", "renewed"]
+        token == "renewed"
+    }
+
+    def "invalidating a token that was replaced already has no effect"() {
+        when:
+        OpenBisSession session = new OpenBisSession(applicationServerApi, "user", "password")
+        session.invalidate("older")
+        def token = session.getToken()
+
+        then:
+        1 * applicationServerApi.login("user", "password") >> "token"
+        token == "token"
+    }
+
+    def "concurrent calls finding the session ended log in only once"() {
+        given:
+        int threads = 8
+        CountDownLatch allFailed = new CountDownLatch(threads)
+        Function<String, String> call = { String token ->
+            if (token == "expired") {
+                // all calls use the expired token before any of them logs in again
+                allFailed.countDown()
+                allFailed.await(10, TimeUnit.SECONDS)
+                throw new RuntimeException("Session token '$token' is invalid: user is not logged in.")
+            }
+            return token
+        }
+        def executor = Executors.newFixedThreadPool(threads)
+
+        when:
+        OpenBisSession session = new OpenBisSession(applicationServerApi, "user", "password")
+        Callable<String> task = { session.withToken(call) }
+        def results = executor.invokeAll(Collections.nCopies(threads, task)).collect { it.get() }
+
+        then:
+        2 * applicationServerApi.login("user", "password") >>> ["expired", "renewed"]
+        0 * applicationServerApi.isSessionActive(_)
+        results.every { it == "renewed" }
+
+        cleanup:
+        executor.shutdownNow()
+    }
+
+    def "calls failing because the session ended are retried with a new token"() {
+        given:
+        Function<String, String> call = { String token ->
+            if (token == "expired") {
+                throw failure
+            }
+            return token
+        }
+
+        when:
+        OpenBisSession session = new OpenBisSession(applicationServerApi, "user", "password")
+        def result = session.withToken(call)
+
+        then:
+        2 * applicationServerApi.login("user", "password") >>> ["expired", "renewed"]
+        result == "renewed"
+
+        where: "the failures are reported by openBIS as follows"
+        failure << [
+            new RuntimeException("Session token 'expired' is invalid: user is not logged in."),
+            new RuntimeException("Session no longer available. Please login again."),
+            new RuntimeException("remote call failed",
+                new IllegalStateException("Session token 'expired' is invalid: user is not logged in.")),
+            new InvalidSessionException("Authorization failure")
+        ]
+    }
+
+    def "calls failing for other reasons are not retried"() {
+        given:
+        Function<String, String> call = { String token ->
+            throw new IllegalArgumentException("Sample 'QABCD001AE' not found.")
+        }
+
+        when:
+        OpenBisSession session = new OpenBisSession(applicationServerApi, "user", "password")
+        session.withToken(call)
+
+        then:
+        1 * applicationServerApi.login("user", "password") >> "token"
+        thrown(IllegalArgumentException)
+    }
+
+    /**
+     * Stands in for the exception openBIS reports ended sessions with.
+     */
+    static class InvalidSessionException extends RuntimeException {
+        InvalidSessionException(String message) {
+            super(message)
+        }
+    }
+}